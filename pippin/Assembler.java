@@ -1,142 +1,301 @@
 package pippin;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
 
+// Assembles a .pasm source in one pass. The source is read through a
+// FileChannel and each line is tokenized straight from its bytes, with
+// the mnemonics looked up in a small hash table of their characters
+// packed into an int. The op part and argument of each instruction go
+// into an int array, which is written out if the source had no errors.
+// Every error in the source is reported, one line of error each, in the
+// words the assembler has always used.
 public class Assembler {
 
 
-	public static Set<String> noArgument = new TreeSet<String>();   
+	public static Set<String> noArgument = new TreeSet<String>();
 	static {
 		noArgument.add("HALT");
 		noArgument.add("NOP");
 		noArgument.add("NOT");
 	}
 
+	// the mnemonics of InstructionMap and noArgument, open addressed by
+	// the hash of their packed characters. A value is the opcode, plus
+	// NO_ARGUMENT if the mnemonic takes no argument.
+	private static final int TABLE_BITS = 6;
+	private static final int NO_ARGUMENT = 0x100;
+	private static final int[] keys = new int[1 << TABLE_BITS];
+	private static final int[] values = new int[1 << TABLE_BITS];
+	static {
+		for(Map.Entry<String, Integer> e : InstructionMap.opcode.entrySet()) {
+			byte[] name = e.getKey().getBytes();
+			int key = pack(name, 0, name.length, false);
+			int slot = slot(key);
+			keys[slot] = key;
+			values[slot] = e.getValue() + (noArgument.contains(e.getKey()) ? NO_ARGUMENT : 0);
+		}
+	}
+
+	// the characters from, up to and not including, to, a byte each, or 0
+	// if there are more than 4 of them. upper makes letters upper case.
+	private static int pack(byte[] text, int from, int to, boolean upper) {
+		if(to - from > 4) {
+			return 0;
+		}
+		int key = 0;
+		for(int i = from; i < to; i++) {
+			int c = text[i] & 0xFF;
+			if(upper && c >= 'a' && c <= 'z') {
+				c -= 'a' - 'A';
+			}
+			key = key << 8 | c;
+		}
+		return key;
+	}
+
+	// the slot of key, or of the empty slot where it would go
+	private static int slot(int key) {
+		int slot = (key*0x9E3779B9) >>> (32 - TABLE_BITS);
+		while(keys[slot] != 0 && keys[slot] != key) {
+			slot = (slot + 1) & (keys.length - 1);
+		}
+		return slot;
+	}
+
+	private final StringBuilder error;
+	private int[] program = new int[1024];
+	private int count = 0;
+	private int lineNumber = 0;
+	private int firstError = 0;
+	// the first of the blank lines since the last line of code
+	private int firstBlankLine = 0;
+
+	private Assembler(StringBuilder error) {
+		this.error = error;
+	}
+
+	// Assembles input to output in the text form, a line of hex op part
+	// and argument for each instruction
 	public static int assemble(File input, File output, StringBuilder error) {
+		return assemble(input, output, error, true);
+	}
+
+	// Assembles input to output in the binary form of Executable
+	public static int assembleBinary(File input, File output, StringBuilder error) {
+		return assemble(input, output, error, false);
+	}
+
+	// Assembles input to output, in text if text is true and otherwise in
+	// the binary form of Executable. Returns 0, or the first line with an
+	// error and puts a line in error for each one, or -1 if a file could
+	// not be read or written.
+	public static int assemble(File input, File output, StringBuilder error, boolean text) {
 		if(error == null) {
 			throw new IllegalArgumentException("Coding error: the error buffer is null");
 		}
-		ArrayList<String> inputText = new ArrayList<String>();
-		int retVal = 0;
-		try(Scanner inp = new Scanner(input)) {
-			int lineNum = 0;
-			boolean blankLineFound = false;
-			int firstBlankLineNum = 0;
-			while(inp.hasNextLine() && retVal == 0) {
-				String line = inp.nextLine();
-				if(line.trim().length() == 0) { //Had to do nested if in order to prevent successive blank lines from moving on in code
-					if(!blankLineFound) {
-						blankLineFound = true;
-					firstBlankLineNum = lineNum;
-					}
-				}
-				else if(line.trim().length() > 0 && blankLineFound) {
-					error.append("Illegal blank line in the source file");
-					retVal = firstBlankLineNum + 1;
-				}
-				else if(line.charAt(0) == ' ' || line.charAt(0) == '\t') {
-					error.append("Line starts with illegal white space");
-					retVal = lineNum + 1;
-				}
-				else {
-					inputText.add(line.trim());
-				}
-				lineNum++;
-			}
-			if(retVal != 0) {
-				return retVal;
-			}
-		}catch(FileNotFoundException e) {
+		Assembler assembler = new Assembler(error);
+		int retVal;
+		try {
+			assembler.read(input);
+			retVal = assembler.firstError;
+		} catch(NoSuchFileException e) {
 			error.append("Unable to open the assembled file");
 			retVal = -1;
+		} catch(IOException e) {
+			error.append("Unable to read the source file");
+			retVal = -1;
 		}
-		ArrayList<String> outputCode = new ArrayList<String>();
 		if(retVal == 0) {
-			for(int i = 0; i < inputText.size() && retVal == 0; i++) {
-				String[] parts = inputText.get(i).split("\\s+");
-				if(!InstructionMap.opcode.containsKey(parts[0].toUpperCase())) {
-					error.append("Error on line " + (i+1) + ": illegal mnemonic");
-					retVal = i+1;
-				}
-				else if(!parts[0].equals(parts[0].toUpperCase())) {
-					error.append("Error on line " + (i+1) + ": mnemomic must be upper case");
-					retVal = i+1;
-				}
-				else if(noArgument.contains(parts[0])) {
-					if(parts.length > 1) {
-						error.append("Error on line " + (i+1) + ": mnemomic cannot take arguments");
-						retVal = i+1;
-					}
-					else {
-						int opPart = 8 * InstructionMap.opcode.get(parts[0]);
-						opPart += Instruction.numOnes(opPart) % 2;
-						outputCode.add(Integer.toString(opPart, 16) + " 0");
-					}
-				}
-				else {
-					if(parts.length > 2) {
-						error.append("Error on line " + (i+1) + ": this mnemonic has too many arguments");
-						retVal = i+1;
-					}
-					else if(parts.length == 1) {
-						error.append("Error on line " + (i+1) + ": this mnemonic is missing arguments");
-						retVal = i+1;
-					}
-					else {
-						try{
-
-							int flags = 0;
-							if(parts[1].charAt(0) == '#') {
-								flags = 2;
-								parts[1] = parts[1].substring(1);
-							}
-							else if(parts[1].charAt(0) == '@') {
-								flags = 4;
-								parts[1] = parts[1].substring(1);
-							}
-							else if(parts[1].charAt(0) == '&') {
-								flags = 6;
-								parts[1] = parts[1].substring(1);
-							}
-							int arg = Integer.parseInt(parts[1], 16);
-							int opPart = 8 * InstructionMap.opcode.get(parts[0]) + flags;
-							opPart += Instruction.numOnes(opPart)%2;
-							outputCode.add(Integer.toString(opPart, 16) + " " + Integer.toString(arg, 16));
-						}catch(NumberFormatException e) {
-							error.append("Error on line " + (i+1) + ": argument is not a hex number");
-							retVal = i+1;
+			try {
+				assembler.write(output, text);
+			} catch(IOException e) {
+				error.append("Error: unable to write the assembled program to the output file");
+				retVal = -1;
+			}
+		}
+
+		if(retVal != 0) {
+			System.out.println(error.toString());
+		}
+		return retVal;
+	}
+
+	// reads the source a buffer at a time, assembling each line as it ends
+	private void read(File input) throws IOException {
+		byte[] line = new byte[256];
+		int length = 0;
+		try(FileChannel channel = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			byte[] bytes = buffer.array();
+			while(channel.read(buffer) >= 0) {
+				int limit = buffer.position();
+				for(int i = 0; i < limit; i++) {
+					if(bytes[i] == '\n') {
+						line(line, length);
+						length = 0;
+					} else {
+						if(length == line.length) {
+							line = Arrays.copyOf(line, 2*length);
 						}
+						line[length++] = bytes[i];
 					}
 				}
+				buffer.clear();
+			}
+		}
+		if(length > 0) {
+			line(line, length);
+		}
+	}
 
+	private void line(byte[] text, int length) {
+		lineNumber++;
+		int end = length;
+		while(end > 0 && (text[end - 1] & 0xFF) <= ' ') {
+			end--;
+		}
+		if(end == 0) {
+			if(firstBlankLine == 0) {
+				firstBlankLine = lineNumber;
 			}
+			return;
 		}
-		if(retVal == 0) {
-			try(PrintWriter outp = new PrintWriter(output)){
-				for(String str : outputCode) {
-					outp.println(str);
-				}
-				outp.close();
-			}catch (FileNotFoundException e) {
-				error.append("Error: unable to write the assembled program to the output file");
-				retVal = -1;
+		if(firstBlankLine != 0) {
+			error(firstBlankLine, "Illegal blank line in the source file");
+			firstBlankLine = 0;
+		}
+		if(text[0] == ' ' || text[0] == '\t') {
+			error(lineNumber, "Line starts with illegal white space");
+			return;
+		}
+		// the mnemonic and the argument, and whether there is more
+		int nameEnd = token(text, 0, end);
+		int argStart = blanks(text, nameEnd, end);
+		int argEnd = token(text, argStart, end);
+		boolean more = blanks(text, argEnd, end) < end;
+		int slot = slot(pack(text, 0, nameEnd, true));
+		if(keys[slot] == 0) {
+			error(lineNumber, onLine() + "illegal mnemonic");
+			return;
+		}
+		if(keys[slot] != pack(text, 0, nameEnd, false)) {
+			error(lineNumber, onLine() + "mnemomic must be upper case");
+			return;
+		}
+		int flags = 0;
+		int arg = 0;
+		if((values[slot] & NO_ARGUMENT) != 0) {
+			if(argStart < end) {
+				error(lineNumber, onLine() + "mnemomic cannot take arguments");
+				return;
 			}
+		} else if(more) {
+			error(lineNumber, onLine() + "this mnemonic has too many arguments");
+			return;
+		} else if(argStart == end) {
+			error(lineNumber, onLine() + "this mnemonic is missing arguments");
+			return;
+		} else {
+			switch(text[argStart]) {
+			case '#': flags = 2; argStart++; break;
+			case '@': flags = 4; argStart++; break;
+			case '&': flags = 6; argStart++; break;
+			}
+			long value = hex(text, argStart, argEnd);
+			if(value == Long.MIN_VALUE) {
+				error(lineNumber, onLine() + "argument is not a hex number");
+				return;
+			}
+			arg = (int)value;
+		}
+		int opPart = 8*(values[slot] & 0xFF) + flags;
+		opPart += Instruction.numOnes(opPart)%2;
+		if(firstError == 0) {
+			if(count + 2 > program.length) {
+				program = Arrays.copyOf(program, 2*program.length);
+			}
+			program[count++] = opPart;
+			program[count++] = arg;
+		}
+	}
+
+	// puts message on a line of error, for an error on line
+	private void error(int line, String message) {
+		if(error.length() > 0) {
+			error.append('\n');
+		}
+		error.append(message);
+		if(firstError == 0 || line < firstError) {
+			firstError = line;
 		}
+	}
 
-		if(retVal != 0) {
-			System.out.println(error.toString());
+	// how a message about the current line starts
+	private String onLine() {
+		return "Error on line " + lineNumber + ": ";
+	}
+
+	// the end of the token starting at from
+	private static int token(byte[] text, int from, int end) {
+		while(from < end && (text[from] & 0xFF) > ' ') {
+			from++;
 		}
-		return retVal;
+		return from;
+	}
 
+	// the first character at or after from that is not blank
+	private static int blanks(byte[] text, int from, int end) {
+		while(from < end && (text[from] & 0xFF) <= ' ') {
+			from++;
+		}
+		return from;
+	}
+
+	// the signed hex number from, up to and not including, to, as
+	// Integer.parseInt reads it, or Long.MIN_VALUE if it is not one
+	private static long hex(byte[] text, int from, int to) {
+		boolean negative = from < to && text[from] == '-';
+		if(from < to && (text[from] == '-' || text[from] == '+')) {
+			from++;
+		}
+		if(from == to) {
+			return Long.MIN_VALUE;
+		}
+		long value = 0;
+		for(int i = from; i < to; i++) {
+			int digit = Character.digit(text[i] & 0xFF, 16);
+			value = 16*value + digit;
+			if(digit < 0 || value > (negative ? 0x80000000L : 0x7FFFFFFFL)) {
+				return Long.MIN_VALUE;
+			}
+		}
+		return negative ? -value : value;
+	}
 
+	private void write(File output, boolean text) throws IOException {
+		if(!text) {
+			Executable.write(Arrays.copyOf(program, count), output);
+			return;
+		}
+		try(BufferedWriter outp = new BufferedWriter(new FileWriter(output))) {
+			for(int i = 0; i < count; i += 2) {
+				outp.write(Integer.toString(program[i], 16) + " "
+						+ Integer.toString(program[i + 1], 16));
+				outp.newLine();
+			}
+		}
 	}
 
 	public static void main(String[] args) {
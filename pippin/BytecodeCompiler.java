@@ -0,0 +1,557 @@
+package pippin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+// Translates the decoded contents of a Code object into a hidden class
+// implementing CompiledCode. The generated execute method holds pc, accum
+// and the step count in locals, enters the program through a tableswitch
+// on pc and runs each instruction straight-line, so that HotSpot sees
+// Pippin loops as ordinary Java loops. Anything it does not translate
+// (FOR, illegal flags, parity errors, dividing by zero, exceptions from
+// Memory) returns INTERPRET with the pc of that instruction, which has
+// not been executed, and MachineModel runs it through the interpreter.
+class BytecodeCompiler {
+	// the class file is written with version 49 so that it needs no
+	// StackMapTable
+	private static final int CLASS_VERSION = 49;
+	// HotSpot does not JIT a method of more than 8000 bytes of bytecode
+	// (HugeMethodLimit), and a program that large runs faster in the
+	// interpreter than as interpreted bytecode. This also keeps every
+	// branch within its 16 bit offset.
+	private static final int MAX_CODE_LENGTH = 8000;
+
+	// local variables of execute(Memory, int[], int)
+	private static final int MEMORY = 1;
+	private static final int REGS = 2;
+	private static final int BUDGET = 3;
+	private static final int PC = 4;
+	private static final int ACCUM = 5;
+	private static final int STEPS = 6;
+	private static final int LIMIT = 7;
+	private static final int TEMP = 8;
+
+	private static final int ICONST_0 = 0x03;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC_W = 0x13;
+	private static final int ILOAD = 0x15;
+	private static final int ALOAD = 0x19;
+	private static final int ALOAD_0 = 0x2a;
+	private static final int ISTORE = 0x36;
+	private static final int IASTORE = 0x4f;
+	private static final int IALOAD = 0x2e;
+	private static final int POP = 0x57;
+	private static final int IADD = 0x60;
+	private static final int ISUB = 0x64;
+	private static final int IMUL = 0x68;
+	private static final int IDIV = 0x6c;
+	private static final int IINC = 0x84;
+	private static final int IFEQ = 0x99;
+	private static final int IFNE = 0x9a;
+	private static final int IFGE = 0x9c;
+	private static final int IF_ICMPGT = 0xa3;
+	private static final int GOTO = 0xa7;
+	private static final int TABLESWITCH = 0xaa;
+	private static final int IRETURN = 0xac;
+	private static final int RETURN = 0xb1;
+	private static final int INVOKEVIRTUAL = 0xb6;
+	private static final int INVOKESPECIAL = 0xb7;
+
+	private static int counter = 0;
+
+	private int[] opcodes;
+	private int[] modes;
+	private int[] args;
+	private int size;
+
+	private ConstantPool pool = new ConstantPool();
+	private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private int getData;
+	private int setData;
+
+	private BytecodeCompiler(Code code) {
+		Code.Decoded decoded = code.decodeAll();
+		this.opcodes = decoded.opcodes;
+		this.modes = decoded.modes;
+		this.args = decoded.args;
+		this.size = code.getProgramSize();
+	}
+
+	// Returns null if the program cannot be compiled, in which case the
+	// caller should keep interpreting it
+	static CompiledCode compile(Code code) {
+		if(code.getProgramSize() == 0) {
+			return null;
+		}
+		try {
+			byte[] classFile = new BytecodeCompiler(code).classFile();
+			if(classFile == null) {
+				return null;
+			}
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+			return (CompiledCode)lookup.lookupClass().getDeclaredConstructor().newInstance();
+		} catch(ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	private byte[] classFile() {
+		String name;
+		synchronized(BytecodeCompiler.class) {
+			name = "pippin/CompiledProgram" + counter++;
+		}
+		int thisClass = pool.classRef(name);
+		int superClass = pool.classRef("java/lang/Object");
+		int iface = pool.classRef("pippin/CompiledCode");
+		int init = pool.methodRef("java/lang/Object", "<init>", "()V");
+		getData = pool.methodRef("pippin/Memory", "getData", "(I)I");
+		setData = pool.methodRef("pippin/Memory", "setData", "(II)V");
+		int runtimeException = pool.classRef("java/lang/RuntimeException");
+		int codeName = pool.utf8("Code");
+
+		byte[] execute = executeBody();
+		if(execute.length > MAX_CODE_LENGTH) {
+			return null;
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(DataOutputStream data = new DataOutputStream(out)) {
+			int initName = pool.utf8("<init>");
+			int initType = pool.utf8("()V");
+			int executeName = pool.utf8("execute");
+			int executeType = pool.utf8("(Lpippin/Memory;[II)I");
+			data.writeInt(0xCAFEBABE);
+			data.writeShort(0);
+			data.writeShort(CLASS_VERSION);
+			pool.write(data);
+			data.writeShort(0x0031); // public final super
+			data.writeShort(thisClass);
+			data.writeShort(superClass);
+			data.writeShort(1);
+			data.writeShort(iface);
+			data.writeShort(0); // no fields
+			data.writeShort(2);
+
+			// public <init>() { super(); }
+			byte[] initBody = {(byte)ALOAD_0, (byte)INVOKESPECIAL,
+					(byte)(init >> 8), (byte)init, (byte)RETURN};
+			data.writeShort(0x0001);
+			data.writeShort(initName);
+			data.writeShort(initType);
+			data.writeShort(1);
+			writeCode(data, codeName, 1, 1, initBody, null);
+
+			// public int execute(Memory memory, int[] regs, int budget)
+			data.writeShort(0x0001);
+			data.writeShort(executeName);
+			data.writeShort(executeType);
+			data.writeShort(1);
+			writeCode(data, codeName, 4, TEMP + 1, execute,
+					new int[] {first.position, end.position, handler.position, runtimeException});
+
+			data.writeShort(0); // no class attributes
+		} catch(IOException e) {
+			return null;
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeCode(DataOutputStream data, int codeName, int maxStack,
+			int maxLocals, byte[] body, int[] exceptionEntry) throws IOException {
+		int handlers = exceptionEntry == null ? 0 : 1;
+		data.writeShort(codeName);
+		data.writeInt(12 + body.length + 8*handlers);
+		data.writeShort(maxStack);
+		data.writeShort(maxLocals);
+		data.writeInt(body.length);
+		data.write(body);
+		data.writeShort(handlers);
+		if(exceptionEntry != null) {
+			for(int entry : exceptionEntry) {
+				data.writeShort(entry);
+			}
+		}
+		data.writeShort(0); // no code attributes
+	}
+
+	private ArrayList<Label> labels = new ArrayList<>();
+	private Label dispatch = new Label();
+	private Label first = new Label();
+	private Label end = new Label();
+	private Label handler = new Label();
+	private Label exitInterpret = new Label();
+	private Label exitHalted = new Label();
+
+	private byte[] executeBody() {
+		Label[] slots = new Label[size + 1];
+		for(int i = 0; i < size; i++) {
+			slots[i] = new Label();
+		}
+		slots[size] = end;
+
+		// pc = regs[0]; accum = regs[1]; steps = 0; limit = budget - size;
+		load(REGS); op(ICONST_0); op(IALOAD); store(PC);
+		load(REGS); pushInt(1); op(IALOAD); store(ACCUM);
+		pushInt(0); store(STEPS);
+		load(BUDGET); pushInt(size); op(ISUB); store(LIMIT);
+
+		// the budget is only checked here and on backward jumps: in between
+		// at most size instructions can run, which limit leaves room for
+		bind(dispatch);
+		load(STEPS); load(LIMIT); branch(IF_ICMPGT, exitInterpret);
+		load(PC);
+		int switchAt = bytes.size();
+		op(TABLESWITCH);
+		while(bytes.size() % 4 != 0) {
+			op(0);
+		}
+		offset32(exitInterpret, switchAt);
+		int32(0);
+		int32(size - 1);
+		for(int i = 0; i < size; i++) {
+			offset32(slots[i], switchAt);
+		}
+
+		bind(first);
+		for(int i = 0; i < size; i++) {
+			bind(slots[i]);
+			pushInt(i); store(PC);
+			instruction(i, slots);
+		}
+		bind(end);
+		pushInt(size); store(PC);
+		branch(GOTO, exitInterpret);
+
+		// an exception from Memory: leave the instruction to the interpreter
+		bind(handler);
+		op(POP);
+		branch(GOTO, exitInterpret);
+
+		bind(exitInterpret);
+		writeBack();
+		pushInt(CompiledCode.INTERPRET); op(IRETURN);
+		bind(exitHalted);
+		writeBack();
+		pushInt(CompiledCode.HALTED); op(IRETURN);
+
+		byte[] code = bytes.toByteArray();
+		for(Label label : labels) {
+			label.patch(code);
+		}
+		return code;
+	}
+
+	private void instruction(int i, Label[] slots) {
+		int op = opcodes[i];
+		int mode = modes[i];
+		int arg = args[i];
+		switch(MachineModel.slot(op >= 0 && op < 0x10 ? op : 0xE, mode)) {
+		case 0x00: // NOP
+			break;
+		case 0x04: case 0x05: case 0x06: // LOD
+			operand(mode, arg);
+			store(ACCUM);
+			break;
+		case 0x08: // STO direct
+			load(MEMORY); pushInt(arg); load(ACCUM); invoke(setData);
+			break;
+		case 0x0A: // STO indirect
+			load(MEMORY); operand(0, arg); load(ACCUM); invoke(setData);
+			break;
+		case 0x0C: case 0x0D: // JUMP direct and immediate
+			op(IINC); op(STEPS); op(1);
+			jumpTo(i, mode == 0 ? (long)i + arg : arg, slots);
+			return;
+		case 0x0E: case 0x0F: // JUMP indirect and &
+			dynamicJump(i, mode, arg);
+			return;
+		case 0x10: case 0x11: { // JMPZ direct and immediate
+			op(IINC); op(STEPS); op(1);
+			load(ACCUM); branch(IFNE, slots[i + 1]);
+			jumpTo(i, mode == 0 ? (long)i + arg : arg, slots);
+			return;
+		}
+		case 0x12: case 0x13: { // JMPZ indirect and &
+			Label notTaken = new Label();
+			load(ACCUM); branch(IFNE, notTaken);
+			dynamicJump(i, mode, arg);
+			bind(notTaken);
+			break;
+		}
+		case 0x14: case 0x15: case 0x16: // ADD
+			load(ACCUM); operand(mode, arg); op(IADD); store(ACCUM);
+			break;
+		case 0x18: case 0x19: case 0x1A: // SUB
+			load(ACCUM); operand(mode, arg); op(ISUB); store(ACCUM);
+			break;
+		case 0x1C: case 0x1D: case 0x1E: // MUL
+			load(ACCUM); operand(mode, arg); op(IMUL); store(ACCUM);
+			break;
+		case 0x20: case 0x21: case 0x22: // DIV
+			operand(mode, arg); store(TEMP);
+			load(TEMP); branch(IFEQ, exitInterpret);
+			load(ACCUM); load(TEMP); op(IDIV); store(ACCUM);
+			break;
+		case 0x24: case 0x25: // AND
+			booleanResult(() -> {
+				Label zero = new Label();
+				load(ACCUM); branch(IFEQ, zero);
+				operand(mode, arg); branch(IFEQ, zero);
+				return zero;
+			});
+			break;
+		case 0x28: // NOT
+			booleanResult(() -> {
+				Label zero = new Label();
+				load(ACCUM); branch(IFNE, zero);
+				return zero;
+			});
+			break;
+		case 0x2C: // CMPL
+			booleanResult(() -> {
+				Label zero = new Label();
+				operand(0, arg); branch(IFGE, zero);
+				return zero;
+			});
+			break;
+		case 0x30: // CMPZ
+			booleanResult(() -> {
+				Label zero = new Label();
+				operand(0, arg); branch(IFNE, zero);
+				return zero;
+			});
+			break;
+		case 0x3C: // HALT
+			op(IINC); op(STEPS); op(1);
+			branch(GOTO, exitHalted);
+			return;
+		default: // FOR, illegal flags, parity errors and unknown opcodes
+			branch(GOTO, exitInterpret);
+			return;
+		}
+		op(IINC); op(STEPS); op(1);
+	}
+
+	// pushes the value an instruction operates on for direct, immediate and
+	// indirect addressing
+	private void operand(int mode, int arg) {
+		if(mode == 2) {
+			pushInt(arg);
+			return;
+		}
+		load(MEMORY);
+		if(mode == 4) {
+			load(MEMORY);
+		}
+		pushInt(arg);
+		invoke(getData);
+		if(mode == 4) {
+			invoke(getData);
+		}
+	}
+
+	// accum = 1 unless the condition jumps to the label it returns
+	private void booleanResult(Supplier<Label> condition) {
+		pushInt(0); store(TEMP);
+		Label zero = condition.get();
+		pushInt(1); store(TEMP);
+		bind(zero);
+		load(TEMP); store(ACCUM);
+	}
+
+	private void jumpTo(int from, long target, Label[] slots) {
+		if(target < 0 || target >= size) {
+			// let the interpreter raise the CodeAccessException
+			pushInt((int)target); store(PC);
+			branch(GOTO, exitInterpret);
+		} else if(target <= from) {
+			pushInt((int)target); store(PC);
+			load(STEPS); load(LIMIT); branch(IF_ICMPGT, exitInterpret);
+			branch(GOTO, slots[(int)target]);
+		} else {
+			branch(GOTO, slots[(int)target]);
+		}
+	}
+
+	private void dynamicJump(int i, int mode, int arg) {
+		if(mode == 4) {
+			load(PC); operand(0, arg); op(IADD);
+		} else {
+			operand(0, arg);
+		}
+		store(PC);
+		op(IINC); op(STEPS); op(1);
+		branch(GOTO, dispatch);
+	}
+
+	private void writeBack() {
+		load(REGS); pushInt(0); load(PC); op(IASTORE);
+		load(REGS); pushInt(1); load(ACCUM); op(IASTORE);
+		load(REGS); pushInt(2); load(STEPS); op(IASTORE);
+	}
+
+	private void op(int b) {
+		bytes.write(b);
+	}
+
+	private void load(int local) {
+		op(local == MEMORY || local == REGS ? ALOAD : ILOAD);
+		op(local);
+	}
+
+	private void store(int local) {
+		op(ISTORE);
+		op(local);
+	}
+
+	private void invoke(int method) {
+		op(INVOKEVIRTUAL);
+		op(method >> 8);
+		op(method);
+	}
+
+	private void pushInt(int value) {
+		if(value >= -1 && value <= 5) {
+			op(ICONST_0 + value);
+		} else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			op(BIPUSH);
+			op(value);
+		} else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			op(SIPUSH);
+			op(value >> 8);
+			op(value);
+		} else {
+			int index = pool.integer(value);
+			op(LDC_W);
+			op(index >> 8);
+			op(index);
+		}
+	}
+
+	private void int32(int value) {
+		op(value >> 24);
+		op(value >> 16);
+		op(value >> 8);
+		op(value);
+	}
+
+	private void branch(int opcode, Label target) {
+		int at = bytes.size();
+		op(opcode);
+		target.use(bytes.size(), at, false);
+		op(0);
+		op(0);
+	}
+
+	private void offset32(Label target, int from) {
+		target.use(bytes.size(), from, true);
+		int32(0);
+	}
+
+	private void bind(Label label) {
+		label.position = bytes.size();
+	}
+
+	private class Label {
+		private int position = -1;
+		// {where the offset goes, the instruction it is relative to, wide}
+		private ArrayList<int[]> uses = new ArrayList<>();
+
+		Label() {
+			labels.add(this);
+		}
+
+		void use(int at, int from, boolean wide) {
+			uses.add(new int[] {at, from, wide ? 1 : 0});
+		}
+
+		void patch(byte[] code) {
+			for(int[] use : uses) {
+				int offset = position - use[1];
+				int at = use[0];
+				if(use[2] == 1) {
+					code[at++] = (byte)(offset >> 24);
+					code[at++] = (byte)(offset >> 16);
+				}
+				code[at++] = (byte)(offset >> 8);
+				code[at] = (byte)offset;
+			}
+		}
+	}
+
+	private static class ConstantPool {
+		private ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		private DataOutputStream out = new DataOutputStream(entries);
+		private Map<String, Integer> indices = new HashMap<>();
+		private int count = 1;
+
+		int utf8(String s) {
+			return entry("U" + s, () -> {
+				out.writeByte(1);
+				out.writeUTF(s);
+			});
+		}
+
+		int integer(int value) {
+			return entry("I" + value, () -> {
+				out.writeByte(3);
+				out.writeInt(value);
+			});
+		}
+
+		int classRef(String name) {
+			int nameIndex = utf8(name);
+			return entry("C" + name, () -> {
+				out.writeByte(7);
+				out.writeShort(nameIndex);
+			});
+		}
+
+		int methodRef(String owner, String name, String type) {
+			int ownerIndex = classRef(owner);
+			int nameIndex = utf8(name);
+			int typeIndex = utf8(type);
+			int nameAndType = entry("N" + name + type, () -> {
+				out.writeByte(12);
+				out.writeShort(nameIndex);
+				out.writeShort(typeIndex);
+			});
+			return entry("M" + owner + "." + name + type, () -> {
+				out.writeByte(10);
+				out.writeShort(ownerIndex);
+				out.writeShort(nameAndType);
+			});
+		}
+
+		void write(DataOutputStream data) throws IOException {
+			data.writeShort(count);
+			data.write(entries.toByteArray());
+		}
+
+		private interface Writer {
+			void write() throws IOException;
+		}
+
+		private int entry(String key, Writer writer) {
+			Integer index = indices.get(key);
+			if(index == null) {
+				try {
+					writer.write();
+				} catch(IOException e) {
+					// cannot happen when writing to a byte array
+					throw new IllegalStateException(e);
+				}
+				index = count++;
+				indices.put(key, index);
+			}
+			return index;
+		}
+	}
+}
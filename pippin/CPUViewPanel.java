@@ -1,22 +1,21 @@
 package pippin;
 
 import java.awt.GridLayout;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.Set;
 
 import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 
-public class CPUViewPanel implements Observer {
+public class CPUViewPanel implements MachineEvents.Listener {
 	private MachineView machineView;
 	private JTextField acc = new JTextField();
 	private JTextField pc = new JTextField();
 	
 	public CPUViewPanel(MachineView machineView) {
 		this.machineView = machineView;
-		machineView.addObserver(this);
+		machineView.subscribe(this, MachineEvents.Kind.STEPS);
 	}
 	
 	public JComponent createCPUDisplay() {
@@ -30,7 +29,7 @@ public class CPUViewPanel implements Observer {
 	}
 
 	@Override
-	public void update(Observable arg0, Object arg1) {
+	public void machineChanged(Set<MachineEvents.Kind> kinds) {
 		if(machineView != null) {
 			acc.setText("" + machineView.getAccum());
 			pc.setText("" + machineView.getPC());
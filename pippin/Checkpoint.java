@@ -0,0 +1,218 @@
+package pippin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Saves the complete state of a MachineModel to a binary file and
+// restores it, in this JVM or another. The file is a sequence of big
+// endian ints, written and read through memory mappings of a window of
+// it at a time, since one mapping holds at most 2GB:
+//     MAGIC, VERSION, running (0 or 1), pc, accum,
+//     number of FORs in progress, then body, mode, arg, outer and inner
+//         iteration of each, outermost first,
+//     program size, then the op part and argument of each instruction,
+//     memory size, the number of pages saved, then the number and the
+//         Memory.PAGE_SIZE words of each page that has been written
+public class Checkpoint {
+	public static final int MAGIC = 0x50495043; // "PIPC"
+	public static final int VERSION = 1;
+
+	public static void save(MachineModel model, File file) throws IOException {
+		int[] state = model.getState();
+		Code code = model.getCode();
+		int size = code.getProgramSize();
+		int[] program = new int[2*size];
+		for(int i = 0; i < size; i++) {
+			program[2*i] = code.getOpPart(i);
+			program[2*i + 1] = code.getArg(i);
+		}
+		Memory memory = model.getMemory();
+		int pages = 0;
+		for(int p = memory.nextPage(0); p >= 0; p = memory.nextPage(p + 1)) {
+			pages++;
+		}
+		long bytes = 4L*(2 + state.length + 1 + program.length + 2
+				+ (long)pages*(1 + Memory.PAGE_SIZE));
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			Ints ints = new Ints(channel, FileChannel.MapMode.READ_WRITE, bytes);
+			ints.put(MAGIC).put(VERSION);
+			ints.put(state);
+			ints.put(size).put(program);
+			ints.put(memory.getSize()).put(pages);
+			for(int p = memory.nextPage(0); p >= 0; p = memory.nextPage(p + 1)) {
+				int from = p*Memory.PAGE_SIZE;
+				int to = (int)Math.min(memory.getSize(), (long)from + Memory.PAGE_SIZE);
+				ints.put(p).put(memory.getData(from, to));
+				// the end of a last page past the end of memory
+				ints.skip(Memory.PAGE_SIZE - (to - from));
+			}
+		}
+	}
+
+	// Puts model in the state saved in file, which replaces its program
+	public static void restore(MachineModel model, File file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long bytes = channel.size();
+			if(bytes < 8 || bytes % 4 != 0) {
+				throw new IOException("File " + file.getName() + " is not a checkpoint");
+			}
+			Ints ints = new Ints(channel, FileChannel.MapMode.READ_ONLY, bytes);
+			if(ints.get() != MAGIC) {
+				throw new IOException("File " + file.getName() + " is not a checkpoint");
+			}
+			int version = ints.get();
+			if(version != VERSION) {
+				throw new IOException("Checkpoint version " + version + " is not supported");
+			}
+			try {
+				int[] registers = new int[4];
+				ints.get(registers);
+				int forDepth = registers[3];
+				if(forDepth < 0 || forDepth > ints.remaining()/5) {
+					throw new IOException("Corrupt checkpoint " + file.getName());
+				}
+				int[] state = new int[4 + 5*forDepth];
+				System.arraycopy(registers, 0, state, 0, 4);
+				ints.get(state, 4, 5*forDepth);
+				int size = ints.get();
+				if(size < 0 || size > Code.CODE_MAX || size > ints.remaining()/2) {
+					throw new IOException("Corrupt checkpoint " + file.getName());
+				}
+				Code code = new Code();
+				ints.get(code, size);
+				Memory data = readPages(ints);
+				if(data == null || ints.hasRemaining()) {
+					throw new IOException("Corrupt checkpoint " + file.getName());
+				}
+				model.setState(state, code, data);
+			} catch(BufferUnderflowException e) {
+				throw new IOException("Corrupt checkpoint " + file.getName());
+			}
+		}
+	}
+
+	// the pages of data memory, or null if they are corrupt
+	private static Memory readPages(Ints ints) throws IOException {
+		int size = ints.get();
+		int pages = ints.get();
+		int count = (int)((size + (long)Memory.PAGE_SIZE - 1)/Memory.PAGE_SIZE);
+		if(size <= 0 || pages < 0 || pages > count) {
+			return null;
+		}
+		Memory data = new Memory(size);
+		int[] words = new int[Memory.PAGE_SIZE];
+		for(int i = 0; i < pages; i++) {
+			int p = ints.get();
+			if(p < 0 || p >= count) {
+				return null;
+			}
+			ints.get(words);
+			int from = p*Memory.PAGE_SIZE;
+			data.setData(from, words, Math.min(Memory.PAGE_SIZE, size - from));
+		}
+		return data;
+	}
+
+	// the ints of a file, mapped WINDOW bytes at a time as they are reached
+	private static class Ints {
+		private static final long WINDOW = 1L << 26;
+		private final FileChannel channel;
+		private final FileChannel.MapMode mode;
+		private final long bytes;
+		// where in the file the mapped window starts
+		private long start = 0;
+		private IntBuffer window = IntBuffer.allocate(0);
+
+		Ints(FileChannel channel, FileChannel.MapMode mode, long bytes) {
+			this.channel = channel;
+			this.mode = mode;
+			this.bytes = bytes;
+		}
+
+		// the window holding the next int, mapping the next one at the end
+		// of the last
+		private IntBuffer window() throws IOException {
+			if(!window.hasRemaining()) {
+				start += 4L*window.capacity();
+				if(start >= bytes) {
+					throw new BufferUnderflowException();
+				}
+				window = channel.map(mode, start, Math.min(WINDOW, bytes - start)).asIntBuffer();
+			}
+			return window;
+		}
+
+		long remaining() {
+			return (bytes - start)/4 - window.position();
+		}
+
+		boolean hasRemaining() {
+			return remaining() > 0;
+		}
+
+		int get() throws IOException {
+			return window().get();
+		}
+
+		void get(int[] ints) throws IOException {
+			get(ints, 0, ints.length);
+		}
+
+		void get(int[] ints, int offset, int length) throws IOException {
+			while(length > 0) {
+				IntBuffer window = window();
+				int n = Math.min(length, window.remaining());
+				window.get(ints, offset, n);
+				offset += n;
+				length -= n;
+			}
+		}
+
+		// appends the next count instructions to code, a window at a time
+		void get(Code code, int count) throws IOException {
+			while(count > 0) {
+				IntBuffer window = window();
+				int n = Math.min(count, window.remaining()/2);
+				if(n == 0) {
+					// an instruction split between two windows
+					code.setCode(get(), get());
+					n = 1;
+				} else {
+					code.setCode(window, n);
+				}
+				count -= n;
+			}
+		}
+
+		Ints put(int value) throws IOException {
+			window().put(value);
+			return this;
+		}
+
+		Ints put(int[] ints) throws IOException {
+			for(int offset = 0; offset < ints.length; ) {
+				IntBuffer window = window();
+				int n = Math.min(ints.length - offset, window.remaining());
+				window.put(ints, offset, n);
+				offset += n;
+			}
+			return this;
+		}
+
+		// moves past count ints, which are left as they are
+		void skip(int count) throws IOException {
+			while(count > 0) {
+				IntBuffer window = window();
+				int n = Math.min(count, window.remaining());
+				window.position(window.position() + n);
+				count -= n;
+			}
+		}
+	}
+}
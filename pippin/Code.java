@@ -1,5 +1,8 @@
 package pippin;
 
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
 public class Code {
 	public static long join (int opPart, int arg) {
 		long longOp = opPart;
@@ -13,15 +16,148 @@ public class Code {
 		return longOp | longArg;		
 	}
 	
-	public static final int CODE_MAX = 256;
-	private long[] code = new long[CODE_MAX];
+	// the most instructions a program can hold
+	public static final int CODE_MAX = 1 << 28;
+	// the instructions are kept in segments of SEGMENT_SIZE, which are
+	// made as the program grows, so it is never copied to grow it
+	static final int SEGMENT_BITS = 12;
+	static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+	// marks a decoded slot whose op part failed the parity check
+	public static final int PARITY_ERROR = Integer.MIN_VALUE;
+	private long[][] segments;
+	// The decoded form of the instructions below size, so that execution
+	// only has to index these arrays. A Decoded is never changed below
+	// its size, and the slots above it are only written before a larger
+	// one is published, so a machine that reads decoded once may use
+	// what it got while others decode more.
+	static final class Decoded {
+		final int[] opcodes;
+		final int[] modes;
+		final int[] args;
+		final int size;
+
+		Decoded(int[] opcodes, int[] modes, int[] args, int size) {
+			this.opcodes = opcodes;
+			this.modes = modes;
+			this.args = args;
+			this.size = size;
+		}
+	}
+	private static final Decoded NONE = new Decoded(new int[0], new int[0], new int[0], 0);
+	// filled in a segment at a time, the first time an instruction in
+	// the segment is fetched
+	private volatile Decoded decoded = NONE;
 	private int nextCodeIndex = 0;
+	// an image is a read-only Code that any number of machines can run
+	private boolean image = false;
+	// in an image, the first instruction that cannot execute, or -1
+	private int firstInvalid = -1;
+	// the compiled and threaded forms of an image, built by the first
+	// machine that runs it with that engine and used by all the others
+	private CompiledCode compiledForm;
+	private CompiledCode threadedForm;
+	private boolean compileFailed = false;
+	
+	public Code() {
+		segments = new long[1][];
+	}
+	
+	private Code(long[][] segments, int size) {
+		this.segments = segments;
+		nextCodeIndex = size;
+	}
 	
 	public void setCode(int op, int arg) {
+		if(image) {
+			throw new CodeAccessException("Attempt to change a program image");
+		}
 		if(nextCodeIndex == CODE_MAX) {
 			throw new CodeAccessException("Attempt to access code outside its bounds");
 		}
-		code[nextCodeIndex++] = join(op, arg);
+		segment(nextCodeIndex >>> SEGMENT_BITS)[nextCodeIndex & (SEGMENT_SIZE - 1)] = join(op, arg);
+		nextCodeIndex++;
+	}
+	
+	// Appends count instructions read from program as the op part and
+	// argument of each in turn, a segment at a time
+	void setCode(IntBuffer program, int count) {
+		if(image) {
+			throw new CodeAccessException("Attempt to change a program image");
+		}
+		if(count > CODE_MAX - nextCodeIndex) {
+			throw new CodeAccessException("Attempt to access code outside its bounds");
+		}
+		int[] pairs = new int[2*Math.min(count, SEGMENT_SIZE)];
+		while(count > 0) {
+			long[] segment = segment(nextCodeIndex >>> SEGMENT_BITS);
+			int offset = nextCodeIndex & (SEGMENT_SIZE - 1);
+			int n = Math.min(count, SEGMENT_SIZE - offset);
+			program.get(pairs, 0, 2*n);
+			for(int k = 0; k < n; k++) {
+				segment[offset + k] = join(pairs[2*k], pairs[2*k + 1]);
+			}
+			nextCodeIndex += n;
+			count -= n;
+		}
+	}
+	
+	// segment s, made if the program has not reached it yet
+	private long[] segment(int s) {
+		if(s >= segments.length) {
+			segments = Arrays.copyOf(segments, Math.max(2*segments.length, s + 1));
+		}
+		if(segments[s] == null) {
+			segments[s] = new long[SEGMENT_SIZE];
+		}
+		return segments[s];
+	}
+	
+	// Decodes the instructions up to the end of the segment holding i, or
+	// all of them if i is past the end, and returns the decoded form
+	synchronized Decoded decodeThrough(int i) {
+		Decoded last = decoded;
+		int from = last.size;
+		if(i < from) {
+			return last;
+		}
+		int to = (int)Math.min(nextCodeIndex, ((i >>> SEGMENT_BITS) + 1L) << SEGMENT_BITS);
+		int[] opcodes = last.opcodes;
+		int[] modes = last.modes;
+		int[] args = last.args;
+		if(to > opcodes.length) {
+			// at least double them, so running through a program a segment
+			// at a time copies each instruction a bounded number of times
+			int length = (int)Math.min(Math.max(to, 2L*opcodes.length), nextCodeIndex);
+			opcodes = Arrays.copyOf(opcodes, length);
+			modes = Arrays.copyOf(modes, length);
+			args = Arrays.copyOf(args, length);
+		}
+		for(int k = from; k < to; k++) {
+			long instruction = segments[k >>> SEGMENT_BITS][k & (SEGMENT_SIZE - 1)];
+			int opPart = (int)(instruction >> 32);
+			if(Instruction.numOnes(opPart) % 2 == 1) {
+				opcodes[k] = PARITY_ERROR;
+			} else {
+				opcodes[k] = opPart/8;
+			}
+			modes[k] = opPart & 0x6; // the parity bit has been verified above
+			args[k] = (int)instruction;
+			if(image && firstInvalid < 0 && !MachineModel.isValid(opcodes[k], modes[k])) {
+				firstInvalid = k;
+			}
+		}
+		decoded = new Decoded(opcodes, modes, args, to);
+		return decoded;
+	}
+	
+	// decodes the whole program, for the engines that translate all of it
+	Decoded decodeAll() {
+		return decodeThrough(Integer.MAX_VALUE);
+	}
+	
+	// the instructions decoded so far; read it once and use its arrays
+	Decoded getDecoded() {
+		return decoded;
 	}
 	
 	public int getProgramSize() {
@@ -32,21 +168,75 @@ public class Code {
 		if(i < 0 || i >= nextCodeIndex) {
 			throw new CodeAccessException("Attempt to access code outside its bounds");
 		}
-		return (int)(code[i] >> 32);
+		return (int)(segments[i >>> SEGMENT_BITS][i & (SEGMENT_SIZE - 1)] >> 32);
 	}
 	
 	public int getArg(int i) {
 		if(i < 0 || i >= nextCodeIndex) {
 			throw new CodeAccessException("Attempt to access code outside its bounds");
 		}
-		return (int)code[i];
+		return (int)segments[i >>> SEGMENT_BITS][i & (SEGMENT_SIZE - 1)];
 	}
 	
 	public void clear() {
-		for(int i = 0; i < code.length; i++) {
-			code[i] = 0;
+		if(image) {
+			throw new CodeAccessException("Attempt to change a program image");
 		}
+		// new segments, since images and copies may share the old ones
+		segments = new long[1][];
 		nextCodeIndex = 0;
+		decoded = NONE;
+	}
+	
+	// Returns a read-only copy of this Code holding only its instructions,
+	// decoded and checked once for all the machines that share it. The
+	// copy shares the segments, since this Code only writes past its end.
+	public Code toImage() {
+		if(image) {
+			return this;
+		}
+		int count = (nextCodeIndex + SEGMENT_SIZE - 1) >>> SEGMENT_BITS;
+		Code result = new Code(Arrays.copyOf(segments, Math.max(count, 1)), nextCodeIndex);
+		result.image = true;
+		return result;
+	}
+	
+	// a Code that can be changed, holding the instructions of this one
+	Code copy() {
+		int count = (nextCodeIndex + SEGMENT_SIZE - 1) >>> SEGMENT_BITS;
+		Code result = new Code(Arrays.copyOf(segments, Math.max(count, 1)), nextCodeIndex);
+		// the copy writes into its last segment, which must be its own
+		if(count > 0 && (nextCodeIndex & (SEGMENT_SIZE - 1)) != 0) {
+			result.segments[count - 1] = segments[count - 1].clone();
+		}
+		return result;
+	}
+	
+	public boolean isImage() {
+		return image;
+	}
+	
+	// the first instruction of an image that faults whenever it is
+	// executed, or -1 if every instruction is valid
+	public int getFirstInvalid() {
+		decodeAll();
+		return firstInvalid;
+	}
+	
+	// The compiled or threaded form of an image for the given engine,
+	// built on the first request; null if it cannot be compiled
+	synchronized CompiledCode getCompiledForm(MachineModel.Engine engine) {
+		if(engine == MachineModel.Engine.THREADED) {
+			if(threadedForm == null) {
+				threadedForm = new ThreadedCode(this);
+			}
+			return threadedForm;
+		}
+		if(compiledForm == null && !compileFailed) {
+			compiledForm = BytecodeCompiler.compile(this);
+			compileFailed = compiledForm == null;
+		}
+		return compiledForm;
 	}
 	
 	public String getText(int i) {
@@ -1,11 +1,11 @@
 package pippin;
 
-import java.util.Observable;
-import java.util.Observer;
+import java.util.Arrays;
+import java.util.Set;
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.Component;
 import java.awt.Dimension;
-import java.awt.GridLayout;
 import java.awt.Rectangle;
 import javax.swing.BorderFactory;
 import javax.swing.JComponent;
@@ -13,85 +13,130 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
-import javax.swing.JTextField;
+import javax.swing.JTable;
 import javax.swing.border.Border;
 import javax.swing.border.TitledBorder;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableCellRenderer;
 
-public class CodeViewPanel implements Observer {
+// Shows the code memory in a table, which only renders the rows in view.
+// The disassembly of each instruction is made when its row is first
+// rendered and kept until a program is loaded or cleared.
+public class CodeViewPanel implements MachineEvents.Listener {
+	// the rows shown when the program is shorter
+	static final int MIN_ROWS = 256;
 	private MachineView machineView;
 	private Code code;
 	private JScrollPane scroller;
-	private JTextField[] codeText = new JTextField[Code.CODE_MAX];
+	private JTable table;
+	private CodeTableModel tableModel;
 	private int previousColor = -1;
+	private int rows = MIN_ROWS;
+
+	private class CodeTableModel extends AbstractTableModel {
+		private static final long serialVersionUID = 1L;
+		private String[] text = new String[rows];
+
+		@Override
+		public int getRowCount() {
+			return rows;
+		}
+		@Override
+		public int getColumnCount() {
+			return 2;
+		}
+		@Override
+		public Object getValueAt(int row, int column) {
+			if(column == 0) {
+				return row + ": ";
+			}
+			if(code == null) {
+				return "";
+			}
+			if(text[row] == null) {
+				text[row] = code.getText(row);
+			}
+			return text[row];
+		}
+
+		void invalidateAll() {
+			if(text.length != rows) {
+				text = new String[rows];
+			} else {
+				Arrays.fill(text, null);
+			}
+			fireTableDataChanged();
+		}
+	}
 	
 	public CodeViewPanel(MachineView machineView) {
 		this.machineView = machineView;
-		machineView.addObserver(this);
+		machineView.subscribe(this, MachineEvents.Kind.CODE_LOADED,
+				MachineEvents.Kind.CLEARED, MachineEvents.Kind.STEPS);
 	}
 	
 	public JComponent createCodeDisplay() {
 		JPanel returnPanel = new JPanel();
-		JPanel panel = new JPanel();
-		JPanel numPanel = new JPanel();
-		JPanel sourcePanel = new JPanel();
 		returnPanel.setPreferredSize(new Dimension(300,150));;
 		returnPanel.setLayout(new BorderLayout());
-		panel.setLayout(new BorderLayout());
-		numPanel.setLayout(new GridLayout(0,1));
-		sourcePanel.setLayout(new GridLayout(0,1));
-		for(int i = 0; i < Code.CODE_MAX; i++) {
-			numPanel.add(new JLabel(i+": ", JLabel.RIGHT));
-			codeText[i] = new JTextField(10);
-			sourcePanel.add(codeText[i]);
-		}
 		Border border = BorderFactory.createTitledBorder(
 				BorderFactory.createLineBorder(Color.BLACK), "Code Memory View",
 				TitledBorder.CENTER, TitledBorder.DEFAULT_POSITION);
 		returnPanel.setBorder(border);
 
-		panel.add(numPanel, BorderLayout.LINE_START);
-		panel.add(sourcePanel, BorderLayout.CENTER);
-		scroller = new JScrollPane(panel);
+		tableModel = new CodeTableModel();
+		table = new JTable(tableModel);
+		table.setTableHeader(null);
+		table.setDefaultRenderer(Object.class, new DefaultTableCellRenderer() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Component getTableCellRendererComponent(JTable table, Object value,
+					boolean isSelected, boolean hasFocus, int row, int column) {
+				super.getTableCellRendererComponent(table, value, false, false, row, column);
+				setHorizontalAlignment(column == 0 ? JLabel.RIGHT : JLabel.LEFT);
+				setBackground(column > 0 && row == previousColor
+						? Color.YELLOW : Color.WHITE);
+				return this;
+			}
+		});
+		table.getColumnModel().getColumn(0).setMaxWidth(50);
+		table.setRowSelectionAllowed(false);
+		scroller = new JScrollPane(table);
 		returnPanel.add(scroller);
 		return returnPanel;
 	}
 	
-	
-	
 	@Override
-	public void update(Observable arg0, Object arg1) {
-		if(arg1 != null && arg1.equals("Load Code")) {
-			code = machineView.getCode();
-			for(int i = 0; i < Code.CODE_MAX; i++) {
-				codeText[i].setText(code.getText(i));
-			}	
-			previousColor = machineView.getPC();			
-			codeText[previousColor].setBackground(Color.YELLOW);
-		}	
-		if(arg1 != null && arg1.equals("Clear")) {
-			for(int i = 0; i < Code.CODE_MAX; i++) {
-				codeText[i].setText("");
-			}	
-			if(previousColor >= 0 && previousColor < Code.CODE_MAX) {
-				codeText[previousColor].setBackground(Color.WHITE);
-			}
+	public void machineChanged(Set<MachineEvents.Kind> kinds) {
+		if(tableModel == null) {
+			return;
+		}
+		if(kinds.contains(MachineEvents.Kind.CLEARED)) {
+			code = null;
 			previousColor = -1;
+			rows = MIN_ROWS;
+			tableModel.invalidateAll();
 		}		
-		if(this.previousColor >= 0 && previousColor < Code.CODE_MAX) {
-			codeText[previousColor].setBackground(Color.WHITE);
-			previousColor = machineView.getPC();
-			if(this.previousColor >= 0 && previousColor < Code.CODE_MAX) {
-				codeText[previousColor].setBackground(Color.YELLOW);
-			}
-		} 
-
-		if(scroller != null && code != null && machineView!= null) {
-			JScrollBar bar= scroller.getVerticalScrollBar();
-			int pc = machineView.getPC();
-			if(pc < Code.CODE_MAX && codeText[pc] != null) {
-				Rectangle bounds = codeText[pc].getBounds();
-				bar.setValue(Math.max(0, bounds.y - 15*bounds.height));
-			}
+		if(kinds.contains(MachineEvents.Kind.CODE_LOADED)) {
+			code = machineView.getCode();
+			rows = Math.min(Math.max(code.getProgramSize(), MIN_ROWS),
+					MemoryViewPanel.MAX_ROWS);
+			tableModel.invalidateAll();
+		}	
+		if(code == null) {
+			return;
+		}
+		int old = previousColor;
+		previousColor = machineView.getPC();
+		if(old >= 0 && old < rows) {
+			tableModel.fireTableRowsUpdated(old, old);
+		}
+		if(previousColor >= 0 && previousColor < rows) {
+			tableModel.fireTableRowsUpdated(previousColor, previousColor);
+			JScrollBar bar = scroller.getVerticalScrollBar();
+			Rectangle bounds = table.getCellRect(previousColor, 0, true);
+			bar.setValue(Math.max(0, bounds.y - 15*bounds.height));
 		}
 	}
 }
@@ -0,0 +1,12 @@
+package pippin;
+
+// Implemented by the hidden classes that BytecodeCompiler generates.
+// execute starts at regs[0] with accumulator regs[1], runs until it meets
+// HALT or an instruction it leaves to the interpreter, and writes back
+// the pc, the accumulator and the number of completed steps in regs[2].
+interface CompiledCode {
+	int HALTED = 0;
+	int INTERPRET = 1;
+
+	int execute(Memory memory, int[] regs, int budget);
+}
@@ -2,24 +2,25 @@ package pippin;
 
 import java.awt.Color;
 import java.awt.GridLayout;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.Set;
 
 import javax.swing.JButton;
 import javax.swing.JComponent;
 import javax.swing.JPanel;
 import javax.swing.JSlider;
 
-public class ControlPanel implements Observer {
+public class ControlPanel implements MachineEvents.Listener {
 	private MachineView machineView;
 	private JButton stepButton = new JButton("Step");
+	private JButton stepBackButton = new JButton("Step Back");
 	private JButton clearButton = new JButton("Clear");
 	private JButton runButton = new JButton("Run/Pause");;
 	private JButton reloadButton = new JButton("Reload");;
 
 	public ControlPanel(MachineView machineView) {
 		this.machineView = machineView;
-		machineView.addObserver(this);
+		// a step can change whether there is one to step back
+		machineView.subscribe(this, MachineEvents.Kind.STATE, MachineEvents.Kind.STEPS);
 	}
 
 	public JComponent createControlDisplay() {
@@ -28,6 +29,9 @@ public class ControlPanel implements Observer {
 		stepButton.setBackground(Color.WHITE);
 		stepButton.addActionListener(e -> machineView.step());
 		returnPanel.add(stepButton);
+		stepBackButton.setBackground(Color.WHITE);
+		stepBackButton.addActionListener(e -> machineView.stepBack());
+		returnPanel.add(stepBackButton);
 		clearButton.setBackground(Color.WHITE);
 		clearButton.addActionListener(e -> machineView.clearAll());
 		returnPanel.add(clearButton);
@@ -44,9 +48,11 @@ public class ControlPanel implements Observer {
 	}
 
 	@Override
-	public void update(Observable arg0, Object arg1) {
+	public void machineChanged(Set<MachineEvents.Kind> kinds) {
 		runButton.setEnabled(machineView.getState().getRunPauseActive());
 		stepButton.setEnabled(machineView.getState().getStepActive());
+		stepBackButton.setEnabled(machineView.getState().getStepBackActive() 
+				&& machineView.canStepBack());
 		clearButton.setEnabled(machineView.getState().getClearActive());
 		reloadButton.setEnabled(machineView.getState().getReloadActive());
 	}
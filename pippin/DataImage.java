@@ -0,0 +1,158 @@
+package pippin;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// The binary form of a .dat file, which holds the words of a data memory
+// that are not zero as blocks of consecutive words. It is a sequence of
+// big endian ints, written and read through a memory mapping:
+//     MAGIC, VERSION, memory size, number of blocks, then the address,
+//         the number of words and the words of each block
+// Blocks are in address order and hold at most MAX_BLOCK words. Text
+// .dat files cannot start with MAGIC, so Loader tells them apart by their
+// first four bytes.
+public class DataImage {
+	public static final int MAGIC = 0x50444154; // "PDAT"
+	public static final int VERSION = 1;
+	static final int MAX_BLOCK = 1 << 16;
+	// a run of fewer zeros than this inside a block is kept, since a new
+	// block costs two words
+	private static final int GAP = 3;
+
+	// Writes the words of memory that are not zero to file
+	public static void write(Memory memory, File file) throws IOException {
+		List<int[]> blocks = blocks(memory);
+		long bytes = 16;
+		for(int[] block : blocks) {
+			bytes += 8 + 4L*(block[1] - block[0]);
+		}
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			IntBuffer ints = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes).asIntBuffer();
+			ints.put(MAGIC).put(VERSION).put(memory.getSize()).put(blocks.size());
+			for(int[] block : blocks) {
+				ints.put(block[0]).put(block[1] - block[0]);
+				ints.put(memory.getData(block[0], block[1]));
+			}
+		}
+	}
+
+	// the start and end of each block of memory to write, found a page at
+	// a time among the pages that have been written
+	private static List<int[]> blocks(Memory memory) {
+		List<int[]> blocks = new ArrayList<>();
+		int start = -1;
+		int end = -1;
+		for(int p = memory.nextPage(0); p >= 0; p = memory.nextPage(p + 1)) {
+			int from = p*Memory.PAGE_SIZE;
+			int[] words = memory.getData(from,
+					(int)Math.min(memory.getSize(), (long)from + Memory.PAGE_SIZE));
+			for(int i = 0; i < words.length; i++) {
+				if(words[i] == 0) {
+					continue;
+				}
+				int index = from + i;
+				if(start >= 0 && (index - end >= GAP || index - start >= MAX_BLOCK)) {
+					blocks.add(new int[] {start, end});
+					start = -1;
+				}
+				if(start < 0) {
+					start = index;
+				}
+				end = index + 1;
+			}
+		}
+		if(start >= 0) {
+			blocks.add(new int[] {start, end});
+		}
+		return blocks;
+	}
+
+	// true if file starts with MAGIC
+	public static boolean isBinary(File file) throws IOException {
+		try(DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+			return input.readInt() == MAGIC;
+		} catch(EOFException e) {
+			return false;
+		}
+	}
+
+	// a memory of the size saved in file holding its words
+	public static Memory read(File file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			IntBuffer ints = header(channel, file);
+			int size = ints.get();
+			if(size <= 0) {
+				throw new IOException("Corrupt data image " + file.getName());
+			}
+			Memory memory = new Memory(size);
+			readBlocks(ints, memory, file);
+			return memory;
+		}
+	}
+
+	// Copies the words in file into memory, which may be of any size that
+	// holds every block
+	static void read(File file, Memory memory) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			IntBuffer ints = header(channel, file);
+			ints.get(); // the size of the memory it was written from
+			readBlocks(ints, memory, file);
+		}
+	}
+
+	// the ints of file after MAGIC and VERSION
+	private static IntBuffer header(FileChannel channel, File file) throws IOException {
+		long bytes = channel.size();
+		if(bytes < 16 || bytes % 4 != 0) {
+			throw new IOException("File " + file.getName() + " is not a data image");
+		}
+		IntBuffer ints = channel.map(FileChannel.MapMode.READ_ONLY, 0, bytes).asIntBuffer();
+		if(ints.get() != MAGIC) {
+			throw new IOException("File " + file.getName() + " is not a data image");
+		}
+		int version = ints.get();
+		if(version != VERSION) {
+			throw new IOException("Data image version " + version + " is not supported");
+		}
+		return ints;
+	}
+
+	private static void readBlocks(IntBuffer ints, Memory memory, File file) throws IOException {
+		try {
+			int count = ints.get();
+			if(count < 0 || count > ints.remaining()/2) {
+				throw new IOException("Corrupt data image " + file.getName());
+			}
+			int[] words = new int[Math.min(MAX_BLOCK, ints.remaining())];
+			for(int b = 0; b < count; b++) {
+				int address = ints.get();
+				int length = ints.get();
+				if(length < 0 || length > MAX_BLOCK || length > ints.remaining()) {
+					throw new IOException("Corrupt data image " + file.getName());
+				}
+				if(address < 0 || address > memory.getSize() - length) {
+					throw new IOException("Block at " + address + " of data image "
+							+ file.getName() + " is outside a memory of size " + memory.getSize());
+				}
+				ints.get(words, 0, length);
+				memory.setData(address, words, length);
+			}
+			if(ints.hasRemaining()) {
+				throw new IOException("Corrupt data image " + file.getName());
+			}
+		} catch(BufferUnderflowException e) {
+			throw new IOException("Corrupt data image " + file.getName());
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package pippin;
+
+import java.util.Arrays;
+
+// A set of memory indices, kept as a bitmap in chunks of CHUNK_SIZE
+// indices. A chunk is only made when an index in it is first added, so a
+// set over a sparse memory only costs what has been written.
+class DirtySet {
+	private static final int CHUNK_BITS = 16;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int WORDS = CHUNK_SIZE/64;
+	private long[][] chunks;
+
+	// a set of indices below size
+	DirtySet(int size) {
+		chunks = new long[(int)((size + (long)CHUNK_SIZE - 1) >> CHUNK_BITS)][];
+	}
+
+	void add(int index) {
+		long[] chunk = chunks[index >>> CHUNK_BITS];
+		if(chunk == null) {
+			chunk = chunks[index >>> CHUNK_BITS] = new long[WORDS];
+		}
+		chunk[(index >> 6) & (WORDS - 1)] |= 1L << index;
+	}
+
+	// adds the indices from, up to and not including, to
+	void addRange(int from, int to) {
+		// whole words where possible
+		while(from < to && (from & 63) != 0) {
+			add(from++);
+		}
+		while(to - from >= 64) {
+			add(from);
+			chunks[from >>> CHUNK_BITS][(from >> 6) & (WORDS - 1)] = -1L;
+			from += 64;
+		}
+		while(from < to) {
+			add(from++);
+		}
+	}
+
+	// adds the indices of other to this set
+	void addAll(DirtySet other) {
+		if(other.chunks.length > chunks.length) {
+			chunks = Arrays.copyOf(chunks, other.chunks.length);
+		}
+		for(int c = 0; c < other.chunks.length; c++) {
+			long[] from = other.chunks[c];
+			if(from == null) {
+				continue;
+			}
+			if(chunks[c] == null) {
+				chunks[c] = from.clone();
+			} else {
+				for(int w = 0; w < WORDS; w++) {
+					chunks[c][w] |= from[w];
+				}
+			}
+		}
+	}
+
+	// adds the indices of this set to other and empties this one
+	void moveTo(DirtySet other) {
+		other.addAll(this);
+		clear();
+	}
+
+	DirtySet copy() {
+		DirtySet result = new DirtySet(0);
+		result.addAll(this);
+		return result;
+	}
+
+	void clear() {
+		Arrays.fill(chunks, null);
+	}
+
+	// the first index at or after from in the set, or -1
+	int next(int from) {
+		if(from < 0) {
+			from = 0;
+		}
+		for(int c = from >>> CHUNK_BITS; c < chunks.length; c++) {
+			long[] chunk = chunks[c];
+			if(chunk == null) {
+				from = (c + 1) << CHUNK_BITS;
+				continue;
+			}
+			int w = (from >> 6) & (WORDS - 1);
+			long word = chunk[w] & (-1L << from);
+			while(true) {
+				if(word != 0) {
+					return (c << CHUNK_BITS) + (w << 6) + Long.numberOfTrailingZeros(word);
+				}
+				if(++w == WORDS) {
+					break;
+				}
+				word = chunk[w];
+			}
+			from = (c + 1) << CHUNK_BITS;
+		}
+		return -1;
+	}
+}
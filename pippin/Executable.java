@@ -0,0 +1,89 @@
+package pippin;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// The binary form of a .pexe file, a sequence of big endian ints written
+// and read through a memory mapping:
+//     MAGIC, VERSION, number of instructions, CRC32 of the instructions,
+//     then the op part and argument of each instruction
+// Text .pexe files, with the op part and argument of an instruction in
+// hex on each line, cannot start with MAGIC, so Loader tells them apart
+// by their first four bytes.
+public class Executable {
+	public static final int MAGIC = 0x50455845; // "PEXE"
+	public static final int VERSION = 1;
+	private static final int HEADER = 16;
+
+	// program holds the op part and argument of each instruction in turn
+	public static void write(int[] program, File file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER + 4L*program.length);
+			IntBuffer ints = buffer.asIntBuffer();
+			ints.position(HEADER/4);
+			ints.put(program);
+			ints.position(0);
+			ints.put(MAGIC).put(VERSION).put(program.length/2).put(checksum(buffer));
+		}
+	}
+
+	// true if file starts with MAGIC
+	public static boolean isBinary(File file) throws IOException {
+		try(DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+			return input.readInt() == MAGIC;
+		} catch(EOFException e) {
+			return false;
+		}
+	}
+
+	// Appends the program in file to the code of model, copying the
+	// instructions straight from the mapping
+	public static void read(MachineModel model, File file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long bytes = channel.size();
+			if(bytes < HEADER || bytes % 8 != 0) {
+				throw new IOException("File " + file.getName() + " is not a binary executable");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, bytes);
+			IntBuffer ints = buffer.asIntBuffer();
+			if(ints.get() != MAGIC) {
+				throw new IOException("File " + file.getName() + " is not a binary executable");
+			}
+			int version = ints.get();
+			if(version != VERSION) {
+				throw new IOException("Executable version " + version + " is not supported");
+			}
+			int size = ints.get();
+			int checksum = ints.get();
+			if(size < 0 || size > Code.CODE_MAX || 8L*size != bytes - HEADER
+					|| checksum != checksum(buffer)) {
+				throw new IOException("Corrupt executable " + file.getName());
+			}
+			try {
+				model.setCode(ints, size);
+			} catch(BufferUnderflowException e) {
+				throw new IOException("Corrupt executable " + file.getName());
+			}
+		}
+	}
+
+	// the CRC32 of the instructions that follow the header in buffer
+	private static int checksum(ByteBuffer buffer) {
+		CRC32 crc = new CRC32();
+		crc.update(buffer.slice(HEADER, buffer.capacity() - HEADER));
+		return (int)crc.getValue();
+	}
+}
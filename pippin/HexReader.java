@@ -0,0 +1,115 @@
+package pippin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Reads a text file in which every line starts with two hex numbers, as
+// in text .pexe and .dat files, and hands each pair to a Sink. The file
+// is read through a FileChannel into one buffer and the numbers are
+// decoded straight from its bytes, without making a String per line.
+// Anything after the two numbers on a line is ignored.
+class HexReader {
+	interface Sink {
+		void accept(int first, int second);
+	}
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+	private final byte[] bytes = buffer.array();
+	private int position = 0;
+	private int limit = 0;
+	private int line = 1;
+	private int column = 0;
+	// the character that ended the last number
+	private int last;
+	private String error;
+
+	private HexReader(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	// Passes the pairs in file to sink and returns null, or a message
+	// giving the line and column of the first error
+	static String read(File file, Sink sink) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return new HexReader(channel).read(sink);
+		}
+	}
+
+	private String read(Sink sink) throws IOException {
+		for(int c = next(); c >= 0; c = next()) {
+			int first = number(c);
+			if(error != null) {
+				return error;
+			}
+			// a line break after the first number is caught as a missing digit
+			int second = number(last);
+			if(error != null) {
+				return error;
+			}
+			sink.accept(first, second);
+			// the rest of the line
+			c = last;
+			while(c >= 0 && c != '\n') {
+				c = next();
+			}
+			line++;
+			column = 0;
+		}
+		return null;
+	}
+
+	// the number starting at c, after any blanks, or 0 with error set
+	private int number(int c) throws IOException {
+		while(c == ' ' || c == '\t' || c == '\r') {
+			c = next();
+		}
+		boolean negative = c == '-';
+		if(c == '-' || c == '+') {
+			c = next();
+		}
+		long value = 0;
+		int digits = 0;
+		while(true) {
+			int digit = Character.digit(c, 16);
+			if(digit < 0) {
+				break;
+			}
+			value = 16*value + digit;
+			if(value > 0x80000000L || value == 0x80000000L && !negative) {
+				error = "Line " + line + ", column " + column + ": hex number out of range";
+				return 0;
+			}
+			digits++;
+			c = next();
+		}
+		if(digits == 0 || !(c < 0 || c == ' ' || c == '\t' || c == '\r' || c == '\n')) {
+			if(c < 0 || c == '\n') {
+				error = "Line " + line + ": expected two hex numbers";
+			} else {
+				error = "Line " + line + ", column " + column + ": '" + (char)c
+						+ "' is not a hex digit";
+			}
+			return 0;
+		}
+		last = c;
+		return (int)(negative ? -value : value);
+	}
+
+	// the next byte of the file, or -1 at its end
+	private int next() throws IOException {
+		if(position == limit) {
+			buffer.clear();
+			if(channel.read(buffer) <= 0) {
+				return -1;
+			}
+			position = 0;
+			limit = buffer.position();
+		}
+		column++;
+		return bytes[position++] & 0xFF;
+	}
+}
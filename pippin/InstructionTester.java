@@ -2,6 +2,19 @@ package pippin;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -31,6 +44,16 @@ public class InstructionTester {
 		ipInit = 0;
 	}
 
+	// puts the program of Factorial, which leaves the factorial of data
+	// word 0 in word 1, into code
+	private static void setFactorial(HexReader.Sink code) {
+		int[] factorial = {0x09, 0, 0x11, 1, 0x09, 0, 0x33, 1, 0x11, 0,
+				0x60, 0, 0x33, 1, 0x21, 4, 0x09, 0, 0x39, 1, 0x1b, 1, 0x78, 0};
+		for(int i = 0; i < factorial.length; i += 2) {
+			code.accept(factorial[i], factorial[i + 1]);
+		}
+	}
+
 
 	@Test
 	public void testNOP(){
@@ -1015,7 +1038,42 @@ public class InstructionTester {
                 machine.getAccum());
 	}
 
-	// HALT is missing at this point
+	@Test
+	//Check HALT stops a machine without a GUI and leaves everything else alone
+	public void testHALT() {
+		machine.setCode(0x78, 0); // HALT
+		machine.setRunning(true);
+		machine.setPC(0);
+		machine.step();
+		assertFalse("Machine stopped", machine.isRunning());
+		assertEquals(RunResult.Reason.HALTED, machine.getStatus().getReason());
+		assertArrayEquals(dataCopy, machine.getData()); 
+		assertEquals("Program counter unchanged", 0, machine.getPC());
+		
+		// a fault is reported with its kind and the faulting PC
+		machine.setCode(0x42, 0); // DIV #0
+		machine.setRunning(true);
+		assertNull(machine.getStatus());
+		machine.setPC(1);
+		try {
+			machine.step();
+			fail("DIV #0 did not fault");
+		} catch(DivideByZeroException e) {
+		}
+		assertFalse("Machine stopped", machine.isRunning());
+		assertEquals(RunResult.FaultKind.DIVIDE_BY_ZERO, machine.getStatus().getFaultKind());
+		assertEquals("Faulting PC", 1, machine.getStatus().getPC());
+		
+		// a HALT in the body of a FOR stops the machine as well
+		machine.setCode(0x6a, 0x1002); // FOR #0x1002
+		machine.setCode(0x78, 0); // HALT
+		machine.setRunning(true);
+		machine.setPC(2);
+		machine.step();
+		assertFalse("Machine stopped", machine.isRunning());
+		assertEquals(RunResult.Reason.HALTED, machine.getStatus().getReason());
+		assertEquals("Program counter at the HALT", 3, machine.getPC());
+	}
 	
 	@Test
 	//Check FOR with an immediate argument
@@ -1069,4 +1127,685 @@ public class InstructionTester {
 		assertArrayEquals(machine.getData(), dataCopy);
 		assertEquals(machine.getPC(), 5);
 	}
+	
+	@Test
+	//Check run stops at HALT with the same results as stepping
+	public void testRunHalts() {
+		machine.setCode(0x0a, 5); // LOD #5
+		machine.setCode(0x2b, 3); // ADD #3
+		machine.setCode(0x11, 0); // STO 0
+		machine.setCode(0x78, 0); // HALT
+		machine.setRunning(true);
+		dataCopy[0] = 8;
+		RunResult result = machine.run(100);
+		assertEquals(RunResult.Reason.HALTED, result.getReason());
+		assertEquals(4, result.getSteps());
+		assertArrayEquals(dataCopy, machine.getData());
+		assertEquals("Accumulator changed", 8, machine.getAccum());
+		assertEquals("Program counter at HALT", 3, machine.getPC());
+	}
+	
+	@Test
+	//Check a machine that has never been started does not run, nor report
+	//a HALT that did not happen
+	public void testRunNotStarted() {
+		MachineModel fresh = new MachineModel(false);
+		fresh.setCode(0x2b, 1); // ADD #1
+		fresh.setCode(0x78, 0); // HALT
+		try {
+			fresh.run(10);
+			fail("A machine that was not started ran");
+		} catch(IllegalStateException e) {
+		}
+		assertNull(fresh.getStatus());
+		fresh.setRunning(true);
+		RunResult result = fresh.run(10);
+		assertEquals(RunResult.Reason.HALTED, result.getReason());
+		assertEquals("Both instructions run", 2, result.getSteps());
+		assertEquals("A stopped machine runs no more", 0, fresh.run(10).getSteps());
+	}
+	
+	@Test
+	//Check run reports a fault and leaves the PC at the faulting instruction
+	public void testRunFaults() {
+		machine.setCode(0x0a, 5); // LOD #5
+		machine.setCode(0x42, 0); // DIV #0
+		machine.setRunning(true);
+		RunResult result = machine.run(100);
+		assertEquals(RunResult.Reason.FAULTED, result.getReason());
+		assertTrue(result.getFault() instanceof DivideByZeroException);
+		assertEquals("Program counter at DIV", 1, machine.getPC());
+		assertEquals("Accumulator unchanged", 5, machine.getAccum());
+	}
+	
+	@Test
+	//Check run and step report the kind of each fault, also from the body
+	//of a FOR
+	public void testFaultKinds() {
+		int[][] programs = {
+				{0x09, -1}, // LOD -1
+				{0x71, 0}, // opcode 0xE
+				{0x81, 0}, // opcode 0x10
+				{0x12, 0}, // STO #0
+				{0x0b, 0}, // LOD #0 with a parity error
+				{0x1b, 100}, // JUMP #100
+				{0x42, 0}, // DIV #0
+		};
+		RunResult.FaultKind[] kinds = {
+				RunResult.FaultKind.DATA_ACCESS, RunResult.FaultKind.UNKNOWN_OPCODE,
+				RunResult.FaultKind.UNKNOWN_OPCODE, RunResult.FaultKind.ILLEGAL_INSTRUCTION,
+				RunResult.FaultKind.PARITY_ERROR, RunResult.FaultKind.CODE_ACCESS,
+				RunResult.FaultKind.DIVIDE_BY_ZERO,
+		};
+		for(int p = 0; p < programs.length; p++) {
+			for(int way = 0; way < 3; way++) {
+				MachineModel m = new MachineModel(false);
+				if(way == 2) {
+					m.setCode(0x6a, 0x1001); // FOR #0x1001
+				}
+				m.setCode(programs[p][0], programs[p][1]);
+				m.setRunning(true);
+				if(way == 0) {
+					assertEquals("Kind from run", kinds[p], m.run(100).getFaultKind());
+				} else {
+					try {
+						while(m.isRunning()) {
+							m.step();
+						}
+						fail("The program did not fault");
+					} catch(RuntimeException e) {
+					}
+					assertEquals("Kind from step", kinds[p], m.getStatus().getFaultKind());
+				}
+			}
+		}
+	}
+	
+	@Test
+	//Check the compiled engine leaves the machine as the interpreter does
+	public void testRunCompiler() {
+		MachineModel other = new MachineModel(false);
+		other.setEngine(MachineModel.Engine.COMPILER);
+		for(int i = 0; i < Memory.DATA_SIZE; i++) {
+			other.setData(i, dataCopy[i]);
+		}
+		for(MachineModel m : new MachineModel[] {machine, other}) {
+			m.setCode(0x11, 300); // STO 300
+			m.setCode(0x2b, 7); // ADD #7
+			m.setCode(0x14, 300); // STO @300
+			m.setCode(0x1b, 0); // JUMP #0
+			m.setRunning(true);
+		}
+		RunResult interpreted = machine.run(1000);
+		RunResult compiled = other.run(1000);
+		assertEquals(interpreted.getReason(), compiled.getReason());
+		assertEquals(interpreted.getSteps(), compiled.getSteps());
+		assertArrayEquals(machine.getData(), other.getData());
+		assertEquals("Accumulator matches", machine.getAccum(), other.getAccum());
+		assertEquals("Program counter matches", machine.getPC(), other.getPC());
+	}
+	
+	@Test
+	//Check a program too long for HotSpot to JIT is left to the interpreter
+	public void testCompilerTooLong() {
+		MachineModel other = new MachineModel(false);
+		other.setEngine(MachineModel.Engine.COMPILER);
+		for(int i = 0; i < 2000; i++) {
+			other.setCode(0x2b, 1); // ADD #1
+		}
+		other.setCode(0x78, 0); // HALT
+		assertNull(BytecodeCompiler.compile(other.getCode()));
+		other.setRunning(true);
+		RunResult result = other.run(10000);
+		assertEquals(RunResult.Reason.HALTED, result.getReason());
+		assertEquals("Accumulator counts every ADD", 2000, other.getAccum());
+	}
+	
+	@Test
+	//Check the threaded engine, whose superinstructions cover most of
+	//the Factorial program, computes the same result as the interpreter
+	public void testRunThreaded() {
+		MachineModel other = new MachineModel(false);
+		other.setEngine(MachineModel.Engine.THREADED);
+		for(MachineModel m : new MachineModel[] {machine, other}) {
+			setFactorial(m::setCode);
+			m.setData(0, 5);
+			m.setRunning(true);
+		}
+		RunResult interpreted = machine.run(1000);
+		RunResult threaded = other.run(1000);
+		assertEquals(RunResult.Reason.HALTED, threaded.getReason());
+		assertEquals(interpreted.getSteps(), threaded.getSteps());
+		assertEquals("5! computed", 120, other.getData(1));
+		assertEquals("Accumulator matches", machine.getAccum(), other.getAccum());
+		assertEquals("Program counter matches", machine.getPC(), other.getPC());
+		
+		// a budget ending inside a superinstruction still stops on
+		// the exact instruction
+		other.setPC(0);
+		other.setData(0, 5);
+		other.setRunning(true);
+		RunResult partial = other.run(14);
+		assertEquals(RunResult.Reason.BUDGET_EXHAUSTED, partial.getReason());
+		assertEquals("Program counter after 14 steps", 4, other.getPC());
+	}
+	
+	@Test
+	//Check a farm runs one program on many data sets and returns the
+	//results in order, both on a pool and on an executor
+	public void testMachineFarm() {
+		Code code = new Code();
+		setFactorial(code::setCode);
+		Code image = code.toImage();
+		assertEquals("Valid image", -1, image.getFirstInvalid());
+		List<MachineFarm.Job> jobs = new ArrayList<>();
+		for(int n = 1; n <= 10; n++) {
+			Memory memory = new Memory();
+			memory.setData(0, n);
+			jobs.add(new MachineFarm.Job(image, memory, 1000, 1, 2));
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			for(MachineFarm farm : new MachineFarm[] {
+					new MachineFarm(MachineModel.Engine.COMPILER),
+					new MachineFarm(MachineModel.Engine.INTERPRETER, executor)}) {
+				List<MachineFarm.Result> results = farm.runAll(jobs);
+				int expected = 1;
+				for(int n = 1; n <= 10; n++) {
+					expected *= n;
+					MachineFarm.Result result = results.get(n - 1);
+					assertEquals(RunResult.Reason.HALTED, result.getRunResult().getReason());
+					assertEquals(n + "! computed", expected, result.getData()[0]);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test
+	//Check a fork continues from the same state without the two machines
+	//seeing each other's writes
+	public void testFork() {
+		setFactorial(machine::setCode);
+		machine.setData(0, 5);
+		machine.setRunning(true);
+		machine.run(14);
+		MachineModel fork = machine.fork();
+		assertEquals("Program counter copied", machine.getPC(), fork.getPC());
+		assertEquals("Accumulator copied", machine.getAccum(), fork.getAccum());
+		// about to store the next factor, 3, after 5*4: make it 2
+		fork.setAccum(2);
+		machine.run(1000);
+		fork.run(1000);
+		assertEquals("5! computed", 120, machine.getData(1));
+		assertEquals("5*4*2! computed", 40, fork.getData(1));
+		assertEquals("Untouched data shared", dataCopy[100], fork.getData(100));
+	}
+	
+	@Test
+	//Check stepping back restores each earlier state, also across the
+	//journal's memory checkpoints
+	public void testStepBack() {
+		machine.setCode(0x09, 0); // LOD 0
+		machine.setCode(0x2b, 1); // ADD #1
+		machine.setCode(0x11, 0); // STO 0
+		machine.setCode(0x11, 1); // STO 1
+		machine.setCode(0x1b, 0); // JUMP #0
+		machine.setJournaling(true);
+		machine.setRunning(true);
+		int[][] before = new int[3000][];
+		for(int i = 0; i < before.length; i++) {
+			before[i] = machine.getData();
+			machine.step();
+		}
+		assertTrue(machine.runBackTo(3));
+		assertEquals("Program counter at STO 1", 3, machine.getPC());
+		assertArrayEquals(before[2998], machine.getData());
+		for(int i = 2997; i >= 0; i--) {
+			assertTrue(machine.stepBack());
+			assertArrayEquals(before[i], machine.getData());
+		}
+		assertFalse("Nothing left to undo", machine.stepBack());
+		assertEquals("Program counter back at start", 0, machine.getPC());
+	}
+	
+	@Test
+	//Check a checkpoint taken inside a FOR resumes to the same result
+	public void testCheckpoint() throws IOException {
+		machine.setCode(0x6a, 0x2003); // FOR #0x2003
+		machine.setCode(0x2b, 1); // ADD #1
+		machine.setCode(0x11, 0); // STO 0
+		machine.setCode(0x78, 0); // HALT
+		machine.setRunning(true);
+		machine.run(3); // stop inside the FOR body
+		File file = File.createTempFile("pippin", ".ckpt");
+		try {
+			Checkpoint.save(machine, file);
+			MachineModel restored = new MachineModel(false);
+			Checkpoint.restore(restored, file);
+			assertArrayEquals(machine.getData(), restored.getData());
+			RunResult expected = machine.run(100);
+			RunResult result = restored.run(100);
+			assertEquals(expected.getSteps(), result.getSteps());
+			assertEquals("Accumulator matches", machine.getAccum(), restored.getAccum());
+			assertEquals("Program counter matches", machine.getPC(), restored.getPC());
+			assertArrayEquals(machine.getData(), restored.getData());
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	//Check lanes that leave the loop at different times end as separate
+	//machines do
+	public void testLockstep() {
+		Code code = new Code();
+		setFactorial(code::setCode);
+		Memory[] data = new Memory[8];
+		for(int n = 0; n < data.length; n++) {
+			data[n] = new Memory();
+			data[n].setData(0, n);
+		}
+		data[0].setData(0, -1); // counts down forever
+		LockstepMachine lanes = new LockstepMachine(code, data);
+		RunResult[] results = lanes.run(1000);
+		for(int n = 0; n < data.length; n++) {
+			machine.reset(code, data[n]);
+			RunResult expected = machine.run(1000);
+			assertEquals(expected.getReason(), results[n].getReason());
+			assertEquals(expected.getSteps(), results[n].getSteps());
+			assertEquals("Program counter matches", machine.getPC(), lanes.getPC(n));
+			assertEquals("Result matches", machine.getData(1), lanes.getData(n, 1));
+		}
+		for(int lane : new int[] {-1, data.length}) {
+			try {
+				lanes.getData(lane, 1);
+				fail("Lane " + lane + " accepted");
+			} catch(ArrayIndexOutOfBoundsException e) {
+			}
+		}
+	}
+
+	@Test
+	//Check stepping a machine that run stopped inside a FOR body carries on
+	//the loop as run would
+	public void testStepInsideFor() {
+		MachineModel[] machines = new MachineModel[3];
+		for(int m = 0; m < machines.length; m++) {
+			machines[m] = new MachineModel(false);
+			machines[m].setCode(0x6a, 0x2003); // FOR #0x2003
+			machines[m].setCode(0x2b, 1); // ADD #1
+			machines[m].setCode(0x11, 0); // STO 0
+			machines[m].setCode(0x78, 0); // HALT
+			machines[m].setRunning(true);
+		}
+		machines[0].run(100);
+		machines[1].run(3); // stop inside the FOR body
+		while(machines[1].isRunning()) {
+			machines[1].step();
+		}
+		machines[2].run(3);
+		machines[2].step();
+		machines[2].step();
+		machines[2].run(100);
+		for(int m = 1; m < machines.length; m++) {
+			assertEquals(RunResult.Reason.HALTED, machines[m].getStatus().getReason());
+			assertEquals("Accumulator matches", machines[0].getAccum(), machines[m].getAccum());
+			assertEquals("Stored sum matches", machines[0].getData(0), machines[m].getData(0));
+		}
+		assertEquals("Three iterations", 3, machines[0].getAccum());
+	}
+
+	@Test
+	//Check lanes that a JMPZ splits run as one group again once their
+	//PCs meet
+	public void testLockstepMerge() {
+		Code code = new Code();
+		code.setCode(0x09, 0); // LOD 0
+		code.setCode(0x22, 4); // JMPZ #4
+		code.setCode(0x0a, 5); // LOD #5
+		code.setCode(0x1b, 5); // JUMP #5
+		code.setCode(0x0a, 7); // LOD #7
+		for(int i = 0; i < 10; i++) {
+			code.setCode(0x2b, 1); // ADD #1
+		}
+		code.setCode(0x11, 1); // STO 1
+		code.setCode(0x78, 0); // HALT
+		Memory[] data = {new Memory(), new Memory()};
+		data[1].setData(0, 1);
+		LockstepMachine lanes = new LockstepMachine(code, data);
+		RunResult[] results = lanes.run(100);
+		assertEquals(RunResult.Reason.HALTED, results[0].getReason());
+		assertEquals(RunResult.Reason.HALTED, results[1].getReason());
+		assertEquals("Zero took the jump", 17, lanes.getData(0, 1));
+		assertEquals("One fell through", 15, lanes.getData(1, 1));
+		// LOD and JMPZ together, each side apart, then the 11 instructions
+		// after the join once for both lanes
+		assertEquals("Lanes merged", 2 + 2 + 1 + 11, lanes.getIssued());
+	}
+
+	@Test
+	//Check writes are drained from the dirty set once, and clear marks
+	//every word
+	public void testDirtySet() {
+		Memory memory = new Memory();
+		memory.drainDirty(new DirtySet(0));
+		memory.setData(3, 1);
+		memory.setData(200, 2);
+		memory.setData(3, 4);
+		DirtySet dirty = new DirtySet(Memory.DATA_SIZE);
+		memory.drainDirty(dirty);
+		assertEquals("First written", 3, dirty.next(0));
+		assertEquals("Next written", 200, dirty.next(4));
+		assertEquals("Nothing else written", -1, dirty.next(201));
+		dirty = new DirtySet(Memory.DATA_SIZE);
+		memory.drainDirty(dirty);
+		assertEquals("Set emptied by the drain", -1, dirty.next(0));
+		memory.clear();
+		memory.drainDirty(dirty);
+		assertEquals("Clear marks every word",
+				Memory.DATA_SIZE - 1, dirty.next(Memory.DATA_SIZE - 1));
+	}
+
+	@Test
+	//Check a memory of Integer.MAX_VALUE words reads and writes its ends,
+	//forks, and rejects addresses outside its size
+	public void testLargeMemory() {
+		int size = Integer.MAX_VALUE;
+		MachineModel large = new MachineModel(false, size);
+		large.setCode(0x0A, 7); // LOD #7
+		large.setCode(0x11, size - 1); // STO size - 1
+		large.setCode(0x09, 1000000000); // LOD 1000000000
+		large.setCode(0x28, size - 1); // ADD size - 1
+		large.setCode(0x78, 0); // HALT
+		large.setData(1000000000, 5);
+		large.setRunning(true);
+		large.run(100);
+		assertEquals("Top word written", 7, large.getData(size - 1));
+		assertEquals("Sparse word read", 12, large.getAccum());
+		assertEquals("Untouched words are zero", 0, large.getData(123456789));
+		MachineModel fork = large.fork();
+		fork.setData(size - 1, 8);
+		assertEquals("Fork leaves the original alone", 7, large.getData(size - 1));
+		try {
+			large.setData(-1, 0);
+			fail("Negative address accepted");
+		} catch(ArrayIndexOutOfBoundsException e) {
+		}
+		MachineModel small = new MachineModel(false, 100);
+		try {
+			small.setData(100, 0);
+			fail("Address past the configured size accepted");
+		} catch(ArrayIndexOutOfBoundsException e) {
+		}
+	}
+
+	@Test
+	//Check sparse memories copied from one image share its pages but
+	//never see each other's writes, nor those to the image
+	public void testSparseCopy() {
+		int index = Memory.FLAT_MAX + 5;
+		Memory image = new Memory(4*Memory.FLAT_MAX);
+		image.setData(index, 3);
+		Memory[] copies = new Memory[3];
+		for(int c = 0; c < copies.length; c++) {
+			copies[c] = new Memory(image.getSize());
+			copies[c].copyFrom(image);
+			assertEquals("Copied word", 3, copies[c].getData(index));
+		}
+		copies[0].setData(index, 4);
+		image.setData(index, 5);
+		copies[1].copyFrom(image);
+		assertEquals("Own write kept", 4, copies[0].getData(index));
+		assertEquals("Copied again", 5, copies[1].getData(index));
+		assertEquals("Other copies untouched", 3, copies[2].getData(index));
+		copies[1].setData(index + 1, 6);
+		assertEquals("Image untouched by a copy", 0, image.getData(index + 1));
+	}
+
+	@Test
+	//Check a mapped memory writes its words through to the file and can be
+	//mapped again and copied
+	public void testMappedMemory() throws IOException {
+		File file = File.createTempFile("pippin", ".mem");
+		try {
+			Memory memory = Memory.map(file, 1000);
+			MachineModel mapped = new MachineModel(false, memory);
+			mapped.setCode(0x0A, 6); // LOD #6
+			mapped.setCode(0x11, 999); // STO 999
+			mapped.setCode(0x78, 0); // HALT
+			mapped.setRunning(true);
+			mapped.run(10);
+			assertEquals("Word stored in the mapped memory", 6, mapped.getData(999));
+			memory.flush();
+			assertEquals("File holds every word", 4000, file.length());
+			Memory again = Memory.map(file);
+			assertEquals("Size read from the file", 1000, again.getSize());
+			assertEquals("Word read back from the file", 6, again.getData(999));
+			Memory copy = new Memory(1000);
+			copy.copyFrom(again);
+			assertEquals("Word copied from the mapped memory", 6, copy.getData(999));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	//Check a program longer than a segment runs, is decoded a segment at
+	//a time and can be copied and turned into an image
+	public void testLongProgram() {
+		int length = 100000;
+		MachineModel machine = new MachineModel(false);
+		for(int i = 0; i < length; i++) {
+			machine.setCode(0x2b, 1); // ADD #1
+		}
+		machine.setCode(0x78, 0); // HALT
+		Code code = machine.getCode();
+		assertEquals("Program size", length + 1, code.getProgramSize());
+		assertEquals("Last argument", 1, code.getArg(length - 1));
+		machine.setRunning(true);
+		machine.run(10);
+		assertEquals("Only the first segment is decoded", Code.SEGMENT_SIZE,
+				code.getDecoded().size);
+		machine.run(2*length);
+		assertEquals("Every instruction ran", length, machine.getAccum());
+		Code image = code.toImage();
+		Code copy = image.copy();
+		copy.setCode(0x78, 0); // HALT
+		code.setCode(0x2b, 1); // ADD #1
+		assertEquals("Copies write their own segment", 0x78, copy.getOpPart(length + 1));
+		assertEquals("Images keep their size", length + 1, image.getProgramSize());
+		assertEquals("Valid image", -1, image.getFirstInvalid());
+		MachineModel threaded = new MachineModel(false);
+		threaded.setEngine(MachineModel.Engine.THREADED);
+		threaded.reset(image, new Memory());
+		threaded.run(2*length);
+		assertEquals("Every instruction ran threaded", length, threaded.getAccum());
+	}
+
+	@Test
+	//Check the assembler writes a binary executable that loads and runs,
+	//and text executables are still told apart and loaded
+	public void testBinaryExecutable() throws IOException {
+		File source = File.createTempFile("pippin", ".pasm");
+		File binary = File.createTempFile("pippin", ".pexe");
+		File text = File.createTempFile("pippin", ".pexe");
+		try {
+			Files.write(source.toPath(), Arrays.asList("LOD #5", "ADD #3", "STO 0", "HALT"));
+			assertEquals("Assembled", 0, Assembler.assembleBinary(source, binary, new StringBuilder()));
+			assertTrue("Binary detected", Executable.isBinary(binary));
+			assertEquals("Header and instructions", 16 + 8*4, binary.length());
+			MachineModel machine = new MachineModel(false);
+			assertEquals("Binary loaded", "success", Loader.load(machine, binary));
+			machine.setRunning(true);
+			machine.run(10);
+			assertEquals("Binary program ran", 8, machine.getData(0));
+			assertEquals("Assembled as text", 0, Assembler.assemble(source, text, new StringBuilder()));
+			assertEquals("Text by default", Arrays.asList("a 5", "2b 3", "11 0", "78 0"),
+					Files.readAllLines(text.toPath()));
+			assertFalse("Text detected", Executable.isBinary(text));
+			MachineModel fromText = new MachineModel(false);
+			assertEquals("Text loaded", "success", Loader.load(fromText, text));
+			for(int i = 0; i < 4; i++) {
+				assertEquals("Same op part", machine.getCode().getOpPart(i),
+						fromText.getCode().getOpPart(i));
+				assertEquals("Same argument", machine.getCode().getArg(i),
+						fromText.getCode().getArg(i));
+			}
+			byte[] bytes = Files.readAllBytes(binary.toPath());
+			bytes[bytes.length - 1] ^= 1;
+			Files.write(binary.toPath(), bytes);
+			assertEquals("Checksum checked", "Corrupt executable " + binary.getName(),
+					Loader.load(new MachineModel(false), binary));
+		} finally {
+			source.delete();
+			binary.delete();
+			text.delete();
+		}
+	}
+
+	@Test
+	//Check text programs and data files are read as before, and a bad line
+	//is reported with its position
+	public void testHexLoader() throws IOException {
+		File program = File.createTempFile("pippin", ".pexe");
+		File data = File.createTempFile("pippin", ".dat");
+		try {
+			Files.write(program.toPath(), "a -5\r\n2b +3 extra\r\n11 0\n78 0".getBytes());
+			Files.write(data.toPath(), "1 7FFFFFFF\n  2\t-80000000\n".getBytes());
+			MachineModel machine = new MachineModel(false);
+			assertEquals("Loaded", "success", Loader.load(machine, program, data));
+			assertEquals("Program size", 4, machine.getCode().getProgramSize());
+			assertEquals("Negative argument", -5, machine.getCode().getArg(0));
+			assertEquals("Largest word", Integer.MAX_VALUE, machine.getData(1));
+			assertEquals("Smallest word", Integer.MIN_VALUE, machine.getData(2));
+			Files.write(data.toPath(), "1 2\n3\n".getBytes());
+			assertEquals("Missing number", "File " + data.getName()
+					+ ": Line 2: expected two hex numbers",
+					Loader.load(new MachineModel(false), program, data));
+			Files.write(data.toPath(), "1 2\n3 4g\n".getBytes());
+			assertEquals("Bad digit", "File " + data.getName()
+					+ ": Line 2, column 4: 'g' is not a hex digit",
+					Loader.load(new MachineModel(false), program, data));
+			Files.write(data.toPath(), "1 100000000\n".getBytes());
+			assertEquals("Too large", "File " + data.getName()
+					+ ": Line 1, column 11: hex number out of range",
+					Loader.load(new MachineModel(false), program, data));
+		} finally {
+			program.delete();
+			data.delete();
+		}
+	}
+
+	@Test
+	//Check a data image keeps the words of a sparse memory in blocks and
+	//is read back whole or into a machine
+	public void testDataImage() throws IOException {
+		File image = File.createTempFile("pippin", ".dat");
+		File program = File.createTempFile("pippin", ".pexe");
+		try {
+			Memory memory = new Memory(1 << 20);
+			memory.setData(3, 1);
+			memory.setData(5, -2); // kept in the block of 3
+			memory.setData(100, 7);
+			for(int i = 0; i < 2*DataImage.MAX_BLOCK; i++) {
+				memory.setData(500000 + i, i + 1);
+			}
+			memory.setData((1 << 20) - 1, 9);
+			DataImage.write(memory, image);
+			assertTrue("Binary detected", DataImage.isBinary(image));
+			assertEquals("Five blocks", 16 + 5*8 + 4L*(3 + 1 + 2*DataImage.MAX_BLOCK + 1),
+					image.length());
+			Memory read = DataImage.read(image);
+			assertEquals("Size saved", 1 << 20, read.getSize());
+			assertArrayEquals("Same words", memory.getData(), read.getData());
+			Files.write(program.toPath(), Arrays.asList("9 64", "78 0")); // LOD 100, HALT
+			MachineModel machine = new MachineModel(false, 1 << 20);
+			assertEquals("Loaded", "success", Loader.load(machine, program, image));
+			machine.setRunning(true);
+			machine.run(10);
+			assertEquals("Word loaded from the image", 7, machine.getAccum());
+			assertEquals("Too small", "Block at 500000 of data image " + image.getName()
+					+ " is outside a memory of size 512",
+					Loader.load(new MachineModel(false), program, image));
+		} finally {
+			image.delete();
+			program.delete();
+		}
+	}
+
+	@Test
+	//Check a reload comes from the cache until a file changes, and a file
+	//that cannot be read is named in the error
+	public void testLoadCache() throws IOException {
+		File program = File.createTempFile("pippin", ".pexe");
+		File data = File.createTempFile("pippin", ".dat");
+		try {
+			Files.write(program.toPath(), Arrays.asList("9 0", "2b 1", "11 0", "78 0"));
+			Files.write(data.toPath(), Arrays.asList("0 5"));
+			LoadCache cache = new LoadCache(1);
+			MachineModel machine = new MachineModel(false);
+			for(int i = 0; i < 2; i++) {
+				assertEquals("Loaded", "success", cache.load(machine, program, data));
+				machine.run(10);
+				assertEquals("Ran on the data", 6, machine.getData(0));
+			}
+			assertEquals("Reloaded from the cache", 1, cache.getHits());
+			Files.write(data.toPath(), Arrays.asList("0 10"));
+			assertEquals("Changed file loaded", "success", cache.load(machine, program, data));
+			machine.run(10);
+			assertEquals("Ran on the new data", 17, machine.getData(0));
+			assertEquals("Changed file missed", 1, cache.getHits());
+			assertEquals("Program alone", "success", cache.load(machine, program, null));
+			Files.write(data.toPath(), Arrays.asList("0 5"));
+			assertEquals("Evicted entry loaded", "success", cache.load(machine, program, data));
+			assertEquals("Only one entry kept", 1, cache.getHits());
+			File missing = new File(data.getPath() + ".missing");
+			assertEquals("Missing data named", "File " + missing.getName() + " Not Found",
+					cache.load(machine, program, missing));
+			assertEquals("Missing program named", "File " + missing.getName() + " Not Found",
+					cache.load(machine, missing, null));
+		} finally {
+			program.delete();
+			data.delete();
+		}
+	}
+
+	@Test
+	//Check the assembler reports every error in the source, one line each,
+	//and still writes text executables
+	public void testAssemblerErrors() throws IOException {
+		File source = File.createTempFile("pippin", ".pasm");
+		File output = File.createTempFile("pippin", ".pexe");
+		try {
+			Files.write(source.toPath(), Arrays.asList("LOD #-5", "lod 1", "FOO 1",
+					"HALT 1", " ADD 1", "STO", "JUMP 1 2", "ADD #xyz", "SUB &-80000000",
+					"", "MUL @1", "", "", "NOP", "", ""));
+			StringBuilder error = new StringBuilder();
+			assertEquals("First line in error", 2,
+					Assembler.assemble(source, output, error));
+			assertEquals("Every error reported in the old words",
+					"Error on line 2: mnemomic must be upper case\n"
+					+ "Error on line 3: illegal mnemonic\n"
+					+ "Error on line 4: mnemomic cannot take arguments\n"
+					+ "Line starts with illegal white space\n"
+					+ "Error on line 6: this mnemonic is missing arguments\n"
+					+ "Error on line 7: this mnemonic has too many arguments\n"
+					+ "Error on line 8: argument is not a hex number\n"
+					+ "Illegal blank line in the source file\n"
+					+ "Illegal blank line in the source file",
+					error.toString());
+			assertEquals("Nothing written", 0, output.length());
+			Files.write(source.toPath(), Arrays.asList("LOD #-5", "SUB &-80000000",
+					"NOT", "HALT", "", ""));
+			assertEquals("Assembled as text", 0,
+					Assembler.assemble(source, output, new StringBuilder()));
+			assertEquals("Text executable", Arrays.asList("a -5", "36 -80000000", "50 0", "78 0"),
+					Files.readAllLines(output.toPath()));
+		} finally {
+			source.delete();
+			output.delete();
+		}
+	}
 }
@@ -0,0 +1,131 @@
+package pippin;
+
+// Undo log of the steps a MachineModel takes through step(): the PC and
+// accumulator before each step and the old value of every memory word
+// the step writes, in ring buffers that keep the most recent steps. Every
+// CHECKPOINT_INTERVAL steps a fork of the memory is kept as well, so that
+// going back a long way restores the nearest checkpoint after the target
+// and only undoes the writes from there.
+class Journal {
+	static final int DEFAULT_CAPACITY = 1 << 16;
+	private static final int CHECKPOINT_INTERVAL = 1024;
+
+	private final int capacity;
+	private final int[] pcs;
+	private final int[] accums;
+	private final long[] firstWrites; // the number of writes before the step
+	private final int writeCapacity;
+	private final int[] writeIndices;
+	private final int[] writeValues;
+	// memory before the step in checkpointSteps with the same index
+	private final Memory[] checkpoints;
+	private final long[] checkpointSteps;
+	private long steps = 0; // the steps recorded
+	private long oldest = 0; // the first step that can still be undone
+	private long writes = 0; // the writes recorded
+
+	Journal(int capacity) {
+		this.capacity = capacity;
+		pcs = new int[capacity];
+		accums = new int[capacity];
+		firstWrites = new long[capacity];
+		writeCapacity = 2*capacity;
+		writeIndices = new int[writeCapacity];
+		writeValues = new int[writeCapacity];
+		checkpoints = new Memory[capacity/CHECKPOINT_INTERVAL + 1];
+		checkpointSteps = new long[checkpoints.length];
+	}
+
+	void clear() {
+		steps = 0;
+		oldest = 0;
+		writes = 0;
+		for(int i = 0; i < checkpoints.length; i++) {
+			checkpoints[i] = null;
+		}
+	}
+
+	long getSteps() {
+		return steps;
+	}
+	boolean canUndo() {
+		return steps > oldest;
+	}
+
+	// Records the state before a step
+	void begin(int pc, int accum, Memory memory) {
+		if(steps - oldest == capacity) {
+			oldest++;
+		}
+		int slot = (int)(steps % capacity);
+		pcs[slot] = pc;
+		accums[slot] = accum;
+		firstWrites[slot] = writes;
+		// a mapped memory cannot be forked, so its steps are only undone
+		// write by write
+		if(steps % CHECKPOINT_INTERVAL == 0 && !memory.isMapped()) {
+			int c = (int)(steps/CHECKPOINT_INTERVAL % checkpoints.length);
+			checkpoints[c] = memory.fork();
+			checkpointSteps[c] = steps;
+		}
+		steps++;
+	}
+
+	// Records the old value of a word the current step writes
+	void write(int index, int oldValue) {
+		int slot = (int)(writes % writeCapacity);
+		writeIndices[slot] = index;
+		writeValues[slot] = oldValue;
+		writes++;
+		// steps whose writes have been overwritten cannot be undone
+		while(oldest < steps && firstWrites[(int)(oldest % capacity)] < writes - writeCapacity) {
+			oldest++;
+		}
+	}
+
+	// the last step at or after the oldest that started at pc, or -1
+	long lastStepAt(int pc) {
+		for(long s = steps - 1; s >= oldest; s--) {
+			if(pcs[(int)(s % capacity)] == pc) {
+				return s;
+			}
+		}
+		return -1;
+	}
+
+	int getPC(long step) {
+		return pcs[(int)(step % capacity)];
+	}
+	int getAccum(long step) {
+		return accums[(int)(step % capacity)];
+	}
+
+	// Puts memory back in its state before the given step, which must be
+	// one that can be undone, and forgets that step and all later ones
+	void undoTo(long step, Memory memory) {
+		long target = firstWrites[(int)(step % capacity)];
+		long from = writes;
+		// the first checkpoint after the step, if it is worth restoring
+		long c = (step + CHECKPOINT_INTERVAL - 1)/CHECKPOINT_INTERVAL*CHECKPOINT_INTERVAL;
+		int slot = (int)(c/CHECKPOINT_INTERVAL % checkpoints.length);
+		if(c < steps && checkpoints[slot] != null && checkpointSteps[slot] == c) {
+			long checkpointWrites = firstWrites[(int)(c % capacity)];
+			// copying a sparse memory costs about as much as a flat one
+			if(writes - checkpointWrites > Math.min(memory.getSize(), Memory.FLAT_MAX)) {
+				memory.copyFrom(checkpoints[slot]);
+				from = checkpointWrites;
+			}
+		}
+		for(long w = from - 1; w >= target; w--) {
+			int i = (int)(w % writeCapacity);
+			memory.setData(writeIndices[i], writeValues[i]);
+		}
+		for(int i = 0; i < checkpoints.length; i++) {
+			if(checkpoints[i] != null && checkpointSteps[i] > step) {
+				checkpoints[i] = null;
+			}
+		}
+		steps = step;
+		writes = target;
+	}
+}
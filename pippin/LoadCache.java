@@ -0,0 +1,140 @@
+package pippin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keeps the programs and data files loaded most recently, so that loading
+// one again only resets the machine to the image of its code and data
+// memory, sharing the decoded and compiled code. A load is looked up by
+// the SHA-256 of the contents of its files, and a file whose length and
+// modification time have not changed since it was last hashed is not
+// read again. The least recently used loads are dropped beyond capacity.
+public class LoadCache {
+	// what a file held the last time it was hashed
+	private static class Stamp {
+		final long length;
+		final long modified;
+		final String hash;
+
+		Stamp(long length, long modified, String hash) {
+			this.length = length;
+			this.modified = modified;
+			this.hash = hash;
+		}
+	}
+
+	private static class Entry {
+		final Code code;
+		final Memory data;
+
+		Entry(Code code, Memory data) {
+			this.code = code;
+			this.data = data;
+		}
+	}
+
+	private final LinkedHashMap<String, Stamp> stamps;
+	private final LinkedHashMap<String, Entry> entries;
+	private int hits = 0;
+
+	public LoadCache(int capacity) {
+		// an entry is loaded from at most two files
+		stamps = new LinkedHashMap<String, Stamp>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Stamp> eldest) {
+				return size() > 2L*capacity;
+			}
+		};
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	// Loads program, and data unless it is null, into model as Loader does,
+	// using the cached images when the files are unchanged. model is reset
+	// to run the program from its first instruction.
+	public synchronized String load(MachineModel model, File program, File data) {
+		if(model == null || program == null) {
+			return null;
+		}
+		String key;
+		File file = program;
+		try {
+			key = hash(program) + " ";
+			if(data != null) {
+				file = data;
+				key += hash(data);
+			}
+			key += " " + model.getDataSize();
+		} catch(NoSuchFileException e) {
+			return("File " + file.getName() + " Not Found");
+		} catch(IOException e) {
+			return("File " + file.getName() + ": " + e.getMessage());
+		}
+		Entry entry = entries.get(key);
+		if(entry == null) {
+			MachineModel loaded = new MachineModel(false, model.getDataSize());
+			String result = data == null ? Loader.load(loaded, program)
+					: Loader.load(loaded, program, data);
+			if(!result.equals("success")) {
+				return result;
+			}
+			entry = new Entry(loaded.getCode().toImage(), loaded.getMemory());
+			entries.put(key, entry);
+		} else {
+			hits++;
+		}
+		model.reset(entry.code, entry.data);
+		return "success";
+	}
+
+	// the number of loads that were found in the cache
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	// the hash of the contents of file, read again only if its length or
+	// modification time changed
+	private String hash(File file) throws IOException {
+		String path = file.getAbsolutePath();
+		long length = file.length();
+		long modified = file.lastModified();
+		Stamp stamp = stamps.get(path);
+		if(stamp != null && stamp.length == length && stamp.modified == modified) {
+			return stamp.hash;
+		}
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every JVM has SHA-256
+		}
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			while(channel.read(buffer) >= 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		String hash = HexFormat.of().formatHex(digest.digest());
+		stamps.put(path, new Stamp(length, modified, hash));
+		return hash;
+	}
+}
@@ -2,73 +2,65 @@ package pippin;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
 
 public class Loader {
 	public static String load(MachineModel model, File program, File data) {
 		if(model == null || program == null || data == null) return null;
-		try(Scanner input = new Scanner(program)) {
-			while(input.hasNextLine()) {
-				String line = input.nextLine();
-				Scanner parser = new Scanner(line);
-				int op = parser.nextInt(16);
-				int arg = parser.nextInt(16);
-				model.setCode(op, arg);
-				parser.close();
+		String result = load(model, program);
+		if(!result.equals("success")) {
+			return result;
+		}
+		try {
+			if(DataImage.isBinary(data)) {
+				DataImage.read(data, model.getMemory());
+				return "success";
 			}
-		}catch(ArrayIndexOutOfBoundsException e) {
-			return("Code array index " + e.getMessage());
-		}catch(NoSuchElementException e) {
-			return("NoSuchElementException");
 		}catch(FileNotFoundException e1) {
-			return("File " + program.getName() + " Not Found");
+			return("File " + data.getName() + " Not Found");
+		}catch(IOException e) {
+			return e.getMessage();
 		}
-		//if(data != null) {
-			try(Scanner input = new Scanner(data)) {
-				while(input.hasNextLine()) {
-					String line = input.nextLine();
-					Scanner parser = new Scanner(line);
-					int op = parser.nextInt(16);
-					int arg = parser.nextInt(16);
-					model.setData(op, arg);
-					parser.close();
-				}
-			}catch(ArrayIndexOutOfBoundsException e) {
-				return("Code array index " + e.getMessage());
-			}catch(NoSuchElementException e) {
-				return("NoSuchElementException");
-			}catch(FileNotFoundException e1) {
-				return("File " + program.getName() + " Not Found");
-			}
-		//}
-		return "success";
-
+		// a text data file
+		return loadPairs(data, model::setData);
 	}
 
 	public static String load(MachineModel model, File program) {
 		if(model == null || program == null) {
 			return null;
 		}
-		try(Scanner input = new Scanner(program)) {
-			while(input.hasNextLine()) {
-				String line = input.nextLine();
-				Scanner parser = new Scanner(line);
-				int op = parser.nextInt(16);
-				int arg = parser.nextInt(16);
-				model.setCode(op, arg);
-				parser.close();
+		try {
+			if(Executable.isBinary(program)) {
+				Executable.read(model, program);
+				return "success";
 			}
-		}catch(ArrayIndexOutOfBoundsException e) {
+		}catch(CodeAccessException e) {
 			return("Code array index " + e.getMessage());
-		}catch(NoSuchElementException e) {
-			return("NoSuchElementException");
 		}catch(FileNotFoundException e1) {
 			return("File " + program.getName() + " Not Found");
+		}catch(IOException e) {
+			return e.getMessage();
 		}
+		// a text executable
+		return loadPairs(program, model::setCode);
+	}
 
+	// passes the pairs of hex numbers on the lines of file to sink
+	private static String loadPairs(File file, HexReader.Sink sink) {
+		try {
+			String error = HexReader.read(file, sink);
+			if(error != null) {
+				return("File " + file.getName() + ": " + error);
+			}
+		}catch(ArrayIndexOutOfBoundsException | CodeAccessException e) {
+			return("Code array index " + e.getMessage());
+		}catch(NoSuchFileException e1) {
+			return("File " + file.getName() + " Not Found");
+		}catch(IOException e) {
+			return("File " + file.getName() + ": " + e.getMessage());
+		}
 		return "success";
-
 	}
 /*
 	public static void main(String[] args) {
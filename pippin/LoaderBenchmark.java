@@ -0,0 +1,60 @@
+package pippin;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Scanner;
+
+// Times reading a text .dat file of a million lines with HexReader, as
+// Loader does, against the Scanner per line that Loader used before.
+// Run it with the number of lines as its argument to change the size.
+public class LoaderBenchmark {
+	// how Loader read each line of a .dat file before HexReader
+	private static void scannerLoad(MachineModel model, File data) throws IOException {
+		try(Scanner input = new Scanner(data)) {
+			while(input.hasNextLine()) {
+				try(Scanner parser = new Scanner(input.nextLine())) {
+					model.setData(parser.nextInt(16), parser.nextInt(16));
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		File data = File.createTempFile("pippin", ".dat");
+		try {
+			try(PrintWriter output = new PrintWriter(new BufferedWriter(new FileWriter(data)))) {
+				for(int i = 0; i < lines; i++) {
+					output.println(Integer.toString(i, 16) + " " + Integer.toString(7*i - 3, 16));
+				}
+			}
+			System.out.println(lines + " lines, " + data.length() + " bytes");
+			// the first rounds let HotSpot compile the readers
+			for(int round = 0; round < 5; round++) {
+				MachineModel model = new MachineModel(false, lines);
+				long start = System.nanoTime();
+				String error = HexReader.read(data, model::setData);
+				long time = System.nanoTime() - start;
+				if(error != null) {
+					System.out.println(error);
+					return;
+				}
+				System.out.printf("HexReader %.1f ms, %.2f million lines/s%n",
+						time/1e6, lines/(time/1e3));
+			}
+			for(int round = 0; round < 2; round++) {
+				MachineModel model = new MachineModel(false, lines);
+				long start = System.nanoTime();
+				scannerLoad(model, data);
+				long time = System.nanoTime() - start;
+				System.out.printf("Scanner   %.1f ms, %.2f million lines/s%n",
+						time/1e6, lines/(time/1e3));
+			}
+		} finally {
+			data.delete();
+		}
+	}
+}
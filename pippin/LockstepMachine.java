@@ -0,0 +1,403 @@
+package pippin;
+
+// Runs one program over many data sets at once. Every lane has its own
+// accumulator, PC and data memory, held in arrays indexed by lane, and
+// memory is stored address by address so that the words of all lanes at
+// one address sit next to each other. The lanes at the lowest PC run
+// together until a branch sends them different ways, so lanes that a JMPZ
+// splits run in turn and merge again once their PCs meet. Lanes only
+// execute together what cannot fault. A lane reaching a FOR, or an
+// instruction that would fault, moves to a MachineModel of its own, so
+// every lane ends exactly as a separate machine would.
+public class LockstepMachine {
+	private final Code code;
+	private final Code.Decoded decoded;
+	private final int lanes;
+	private final int size; // the words of memory of each lane
+	private final int[] accum;
+	private final int[] pc;
+	private final long[] steps;
+	private final boolean[] running;
+	private final RunResult[] results;
+	private final int[] memory; // memory[address*lanes + lane]
+	private final int[] group; // the lanes running together
+	private final int[] next; // the PC each lane of group branches to
+	// the machine of each lane that has left the lanes running together
+	private final MachineModel[] machines;
+	private final Memory scratch;
+	// the PC of the lanes in group and the instructions they have
+	// executed together, which are added to their pc and steps when the
+	// group breaks up
+	private int groupPC;
+	private long done;
+	// the instructions executed by groups, each counted once for all the
+	// lanes that executed it together
+	private long issued = 0;
+
+	// data holds the memory of each lane, all of the same size
+	public LockstepMachine(Code code, Memory[] data) {
+		this.code = code.toImage();
+		// the lanes run together, so the program is decoded at once
+		decoded = this.code.decodeAll();
+		lanes = data.length;
+		size = lanes == 0 ? Memory.DATA_SIZE : data[0].getSize();
+		for(Memory m : data) {
+			if(m.getSize() != size) {
+				throw new IllegalArgumentException("Lanes with memories of sizes "
+						+ size + " and " + m.getSize());
+			}
+		}
+		if((long)size*lanes > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Too much memory for " + lanes + " lanes");
+		}
+		scratch = new Memory(size);
+		accum = new int[lanes];
+		pc = new int[lanes];
+		steps = new long[lanes];
+		running = new boolean[lanes];
+		results = new RunResult[lanes];
+		memory = new int[size*lanes];
+		group = new int[lanes];
+		next = new int[lanes];
+		machines = new MachineModel[lanes];
+		// copied a block of addresses at a time, since the words of one
+		// lane are lanes apart
+		for(int block = 0; block < size; block += 16) {
+			for(int l = 0; l < lanes; l++) {
+				for(int a = block; a < Math.min(block + 16, size); a++) {
+					memory[a*lanes + l] = data[l].getData(a);
+				}
+			}
+		}
+		for(int l = 0; l < lanes; l++) {
+			running[l] = true;
+		}
+	}
+
+	public int getLanes() {
+		return lanes;
+	}
+	public int getData(int lane, int address) {
+		// the words of the lanes are interleaved, so a bad lane would read
+		// a word of another one
+		if(lane < 0 || lane >= lanes) {
+			throw new ArrayIndexOutOfBoundsException(lane);
+		}
+		if(address < 0 || address >= size) {
+			throw new ArrayIndexOutOfBoundsException(address);
+		}
+		return memory[address*lanes + lane];
+	}
+	public int getAccum(int lane) {
+		return accum[lane];
+	}
+	public int getPC(int lane) {
+		return pc[lane];
+	}
+	public boolean isRunning(int lane) {
+		return running[lane];
+	}
+
+	// Runs every lane that has not halted or faulted for at most maxSteps
+	// more instructions and returns how each lane stopped
+	public RunResult[] run(long maxSteps) {
+		int programSize = code.getProgramSize();
+		for(int l = 0; l < lanes; l++) {
+			steps[l] = 0;
+			if(running[l]) {
+				results[l] = null; // a stopped lane keeps its last result
+			}
+		}
+		for(int l = 0; l < lanes; l++) {
+			if(results[l] == null && machines[l] != null) {
+				finish(l, maxSteps);
+			}
+		}
+		while(true) {
+			// gather the lanes at the lowest PC, starting again whenever a
+			// lower one turns up
+			int target = Integer.MAX_VALUE;
+			int count = 0;
+			for(int l = 0; l < lanes; l++) {
+				if(results[l] != null) {
+					continue;
+				}
+				if(steps[l] == maxSteps) {
+					results[l] = new RunResult(RunResult.Reason.BUDGET_EXHAUSTED,
+							steps[l], pc[l], accum[l], null);
+					continue;
+				}
+				if(pc[l] < target) {
+					target = pc[l];
+					count = 0;
+				}
+				if(pc[l] == target) {
+					group[count++] = l;
+				}
+			}
+			if(count == 0) {
+				break;
+			}
+			long limit = Long.MAX_VALUE;
+			for(int k = 0; k < count; k++) {
+				limit = Math.min(limit, maxSteps - steps[group[k]]);
+			}
+			// the lowest PC of the lanes left waiting, where the group stops
+			// so that they can be gathered with it again
+			int waiting = Integer.MAX_VALUE;
+			for(int l = 0; l < lanes; l++) {
+				if(results[l] == null && pc[l] > target) {
+					waiting = Math.min(waiting, pc[l]);
+				}
+			}
+			groupPC = target;
+			done = 0;
+			while(count > 0 && done < limit && groupPC < waiting) {
+				if(groupPC < 0 || groupPC >= programSize) {
+					// the machines raise the CodeAccessException
+					for(int k = 0; k < count; k++) {
+						leave(group[k], maxSteps);
+					}
+					count = 0;
+				} else {
+					count = step(count, maxSteps);
+				}
+			}
+			for(int k = 0; k < count; k++) {
+				int l = group[k];
+				pc[l] = groupPC;
+				steps[l] += done;
+			}
+			issued += done;
+		}
+		return results.clone();
+	}
+
+	long getIssued() {
+		return issued;
+	}
+
+	// Executes the instruction at groupPC for the first count lanes of
+	// group as the HANDLERS of MachineModel do, and returns the number of
+	// lanes still running together
+	private int step(int count, long maxSteps) {
+		int op = decoded.opcodes[groupPC];
+		int mode = decoded.modes[groupPC];
+		int arg = decoded.args[groupPC];
+		boolean direct = arg >= 0 && arg < size;
+		int base = arg*lanes;
+		switch(op) {
+		case 0x0: // NOP
+			if(mode != 0) break;
+			return advance(count);
+		case 0x1: // LOD
+			if(mode == 2) {
+				for(int k = 0; k < count; k++) accum[group[k]] = arg;
+			} else if(mode == 0 && direct) {
+				for(int k = 0; k < count; k++) accum[group[k]] = memory[base + group[k]];
+			} else if(mode == 4 && direct) {
+				count = keepAddressed(count, base, maxSteps);
+				for(int k = 0; k < count; k++) {
+					int l = group[k];
+					accum[l] = memory[memory[base + l]*lanes + l];
+				}
+			} else break;
+			return advance(count);
+		case 0x2: // STO
+			if(mode == 0 && direct) {
+				for(int k = 0; k < count; k++) memory[base + group[k]] = accum[group[k]];
+			} else if(mode == 4 && direct) {
+				count = keepAddressed(count, base, maxSteps);
+				for(int k = 0; k < count; k++) {
+					int l = group[k];
+					memory[memory[base + l]*lanes + l] = accum[l];
+				}
+			} else break;
+			return advance(count);
+		case 0x3: // JUMP
+			if(mode == 0) {
+				groupPC += arg;
+			} else if(mode == 2) {
+				groupPC = arg;
+			} else if(direct) {
+				for(int k = 0; k < count; k++) {
+					int l = group[k];
+					next[k] = mode == 4 ? groupPC + memory[base + l] : memory[base + l];
+				}
+				return branch(count);
+			} else break;
+			done++;
+			return count;
+		case 0x4: // JMPZ
+			if(mode != 0 && mode != 2 && !direct) break;
+			for(int k = 0; k < count; k++) {
+				int l = group[k];
+				if(accum[l] != 0) {
+					next[k] = groupPC + 1;
+				} else if(mode == 0) {
+					next[k] = groupPC + arg;
+				} else if(mode == 2) {
+					next[k] = arg;
+				} else if(mode == 4) {
+					next[k] = groupPC + memory[base + l];
+				} else {
+					next[k] = memory[base + l];
+				}
+			}
+			return branch(count);
+		case 0x5: // ADD
+		case 0x6: // SUB
+		case 0x7: // MUL
+			if(mode == 6 || (mode != 2 && !direct)) break;
+			if(mode == 4) {
+				count = keepAddressed(count, base, maxSteps);
+			}
+			for(int k = 0; k < count; k++) {
+				int l = group[k];
+				int value = mode == 2 ? arg
+						: mode == 0 ? memory[base + l] : memory[memory[base + l]*lanes + l];
+				if(op == 0x5) accum[l] += value;
+				else if(op == 0x6) accum[l] -= value;
+				else accum[l] *= value;
+			}
+			return advance(count);
+		case 0x8: // DIV
+			if(mode == 6 || (mode != 2 && !direct)) break;
+			if(mode == 4) {
+				count = keepAddressed(count, base, maxSteps);
+			}
+			int kept = 0;
+			for(int k = 0; k < count; k++) {
+				int l = group[k];
+				int value = mode == 2 ? arg
+						: mode == 0 ? memory[base + l] : memory[memory[base + l]*lanes + l];
+				if(value == 0) {
+					leave(l, maxSteps); // the machine raises the DivideByZeroException
+				} else {
+					accum[l] /= value;
+					group[kept++] = l;
+				}
+			}
+			return advance(kept);
+		case 0x9: // AND
+			if(mode != 2 && !(mode == 0 && direct)) break;
+			for(int k = 0; k < count; k++) {
+				int l = group[k];
+				int value = mode == 2 ? arg : memory[base + l];
+				accum[l] = accum[l] != 0 && value != 0 ? 1 : 0;
+			}
+			return advance(count);
+		case 0xA: // NOT
+			if(mode != 0) break;
+			for(int k = 0; k < count; k++) {
+				int l = group[k];
+				accum[l] = accum[l] == 0 ? 1 : 0;
+			}
+			return advance(count);
+		case 0xB: // CMPL
+		case 0xC: // CMPZ
+			if(mode != 0 || !direct) break;
+			for(int k = 0; k < count; k++) {
+				int l = group[k];
+				int value = memory[base + l];
+				accum[l] = (op == 0xB ? value < 0 : value == 0) ? 1 : 0;
+			}
+			return advance(count);
+		case 0xF: // HALT
+			if(mode != 0) break;
+			for(int k = 0; k < count; k++) {
+				int l = group[k];
+				pc[l] = groupPC;
+				steps[l] += done + 1;
+				running[l] = false;
+				results[l] = new RunResult(RunResult.Reason.HALTED, steps[l],
+						pc[l], accum[l], null);
+			}
+			return 0;
+		}
+		// FOR, illegal flags, parity errors, unknown opcodes and addresses
+		// outside memory
+		for(int k = 0; k < count; k++) {
+			leave(group[k], maxSteps);
+		}
+		return 0;
+	}
+
+	private int advance(int count) {
+		groupPC++;
+		done++;
+		return count;
+	}
+
+	// Moves the group to the PCs in next if they are all the same, and
+	// otherwise breaks it up
+	private int branch(int count) {
+		int target = next[0];
+		boolean together = true;
+		for(int k = 1; k < count; k++) {
+			together &= next[k] == target;
+		}
+		done++;
+		if(together) {
+			groupPC = target;
+			return count;
+		}
+		for(int k = 0; k < count; k++) {
+			int l = group[k];
+			pc[l] = next[k];
+			steps[l] += done;
+		}
+		return 0;
+	}
+
+	// Moves the lanes whose indirect address at base is outside memory to
+	// machines of their own and returns the number of lanes left in group
+	private int keepAddressed(int count, int base, long maxSteps) {
+		int kept = 0;
+		for(int k = 0; k < count; k++) {
+			int l = group[k];
+			int address = memory[base + l];
+			if(address >= 0 && address < size) {
+				group[kept++] = l;
+			} else {
+				leave(l, maxSteps);
+			}
+		}
+		return kept;
+	}
+
+	// Moves a lane of group, before it executes the instruction at
+	// groupPC, to a machine of its own and runs it there
+	private void leave(int lane, long maxSteps) {
+		pc[lane] = groupPC;
+		steps[lane] += done;
+		int[] data = new int[size];
+		for(int a = 0; a < size; a++) {
+			data[a] = memory[a*lanes + lane];
+		}
+		scratch.setData(data);
+		MachineModel machine = new MachineModel(false);
+		machine.reset(code, scratch);
+		machine.setPC(pc[lane]);
+		machine.setAccum(accum[lane]);
+		machines[lane] = machine;
+		finish(lane, maxSteps);
+	}
+
+	// Runs a lane on its machine with the rest of its budget, keeping
+	// what the machine holds for the next run, such as FORs in progress
+	private void finish(int lane, long maxSteps) {
+		MachineModel machine = machines[lane];
+		RunResult result = machine.run(maxSteps - steps[lane]);
+		int[] data = machine.getData();
+		for(int a = 0; a < size; a++) {
+			memory[a*lanes + lane] = data[a];
+		}
+		pc[lane] = machine.getPC();
+		accum[lane] = machine.getAccum();
+		steps[lane] += result.getSteps();
+		running[lane] = machine.isRunning();
+		results[lane] = new RunResult(result.getReason(), steps[lane],
+				pc[lane], accum[lane], result.getFault(), result.getFaultKind());
+	}
+}
@@ -0,0 +1,74 @@
+package pippin;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.swing.SwingUtilities;
+
+// Tells the panels of a MachineView what changed. Events posted on the
+// event thread are coalesced until it is done with the current Swing
+// event, and then every listener is called once with the kinds it
+// subscribed to among those posted, so a burst of steps costs one
+// repaint. MEMORY events come with the words written, which the memory
+// panels read from MachineView.nextDirty while they are delivered.
+public class MachineEvents {
+	public enum Kind {
+		STEPS,       // the PC and accumulator may have changed
+		MEMORY,      // words of data memory were written
+		CODE_LOADED, // a program and its data were loaded
+		CLEARED,     // the program and data were cleared
+		STATE        // the state of the controls changed
+	}
+
+	public interface Listener {
+		void machineChanged(Set<Kind> kinds);
+	}
+
+	private static class Subscription {
+		final Listener listener;
+		final Set<Kind> kinds;
+
+		Subscription(Listener listener, Set<Kind> kinds) {
+			this.listener = listener;
+			this.kinds = kinds;
+		}
+	}
+
+	private final List<Subscription> subscriptions = new ArrayList<>();
+	private final EnumSet<Kind> posted = EnumSet.noneOf(Kind.class);
+	private final Runnable delivered;
+	private boolean scheduled = false;
+
+	// delivered runs after each delivery
+	public MachineEvents(Runnable delivered) {
+		this.delivered = delivered;
+	}
+
+	public void subscribe(Listener listener, Kind first, Kind... rest) {
+		subscriptions.add(new Subscription(listener, EnumSet.of(first, rest)));
+	}
+
+	public void post(Kind kind) {
+		posted.add(kind);
+		if(!scheduled) {
+			scheduled = true;
+			SwingUtilities.invokeLater(this::deliver);
+		}
+	}
+
+	private void deliver() {
+		scheduled = false;
+		EnumSet<Kind> kinds = EnumSet.copyOf(posted);
+		posted.clear();
+		for(Subscription s : subscriptions) {
+			EnumSet<Kind> wanted = EnumSet.copyOf(kinds);
+			wanted.retainAll(s.kinds);
+			if(!wanted.isEmpty()) {
+				s.listener.machineChanged(wanted);
+			}
+		}
+		delivered.run();
+	}
+}
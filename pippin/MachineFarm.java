@@ -0,0 +1,170 @@
+package pippin;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+// Runs batches of (program, data) jobs in parallel, on a ForkJoinPool or
+// on any Executor, such as one starting a virtual thread per task. Every
+// job runs headless on a MachineModel taken from a stack of idle
+// machines and reset for the job, so a batch creates at most one machine
+// per thread running at the same time.
+public class MachineFarm {
+	// the most jobs handed to an Executor and not yet finished
+	private static final int IN_FLIGHT = 1024;
+
+	public static class Job {
+		private final Code code;
+		private final Memory memory;
+		private final long maxSteps;
+		private final int resultStart;
+		private final int resultEnd;
+
+		// runs code on a copy of memory for at most maxSteps instructions
+		// and returns the data from resultStart up to, not including,
+		// resultEnd. Machines running an image from Code.toImage share
+		// its compiled form.
+		public Job(Code code, Memory memory, long maxSteps, int resultStart, int resultEnd) {
+			if(resultStart < 0 || resultEnd > memory.getSize() || resultStart > resultEnd) {
+				throw new IllegalArgumentException("Illegal result range "
+						+ resultStart + " to " + resultEnd);
+			}
+			this.code = code;
+			this.memory = memory;
+			this.maxSteps = maxSteps;
+			this.resultStart = resultStart;
+			this.resultEnd = resultEnd;
+		}
+
+		public Code getCode() {
+			return code;
+		}
+		public Memory getMemory() {
+			return memory;
+		}
+		public long getMaxSteps() {
+			return maxSteps;
+		}
+		public int getResultStart() {
+			return resultStart;
+		}
+		public int getResultEnd() {
+			return resultEnd;
+		}
+	}
+
+	public static class Result {
+		private final Job job;
+		private final RunResult run;
+		private final int[] data;
+
+		Result(Job job, RunResult run, int[] data) {
+			this.job = job;
+			this.run = run;
+			this.data = data;
+		}
+
+		public Job getJob() {
+			return job;
+		}
+		// why the job stopped, its instruction count, PC and accumulator
+		public RunResult getRunResult() {
+			return run;
+		}
+		// the result range of the job's memory when it stopped
+		public int[] getData() {
+			return data;
+		}
+	}
+
+	private final MachineModel.Engine engine;
+	private final ForkJoinPool pool;
+	private final Executor executor;
+	private final ConcurrentLinkedDeque<MachineModel> idle = new ConcurrentLinkedDeque<>();
+
+	public MachineFarm(MachineModel.Engine engine) {
+		this(engine, ForkJoinPool.commonPool());
+	}
+
+	public MachineFarm(MachineModel.Engine engine, ForkJoinPool pool) {
+		this.engine = engine;
+		this.pool = pool;
+		this.executor = null;
+	}
+
+	public MachineFarm(MachineModel.Engine engine, Executor executor) {
+		this.engine = engine;
+		this.pool = null;
+		this.executor = executor;
+	}
+
+	// Runs every job and passes each result to results as soon as the job
+	// is done, in no particular order and from the threads running the
+	// jobs. Returns when all jobs are done.
+	public void run(Stream<Job> jobs, Consumer<? super Result> results) {
+		forEach(jobs, job -> results.accept(runJob(job)));
+	}
+
+	// Runs every job and returns the results in the order of the jobs
+	public List<Result> runAll(List<Job> jobs) {
+		Result[] results = new Result[jobs.size()];
+		forEach(IntStream.range(0, results.length).boxed(),
+				i -> results[i] = runJob(jobs.get(i)));
+		return Arrays.asList(results);
+	}
+
+	private Result runJob(Job job) {
+		// the machine used last is the most likely to have compiled the code
+		MachineModel machine = idle.pollFirst();
+		if(machine == null) {
+			machine = new MachineModel(false);
+			machine.setEngine(engine);
+		}
+		try {
+			machine.reset(job.code, job.memory);
+			RunResult run = machine.run(job.maxSteps);
+			int[] data = machine.getData(job.resultStart, job.resultEnd);
+			return new Result(job, run, data);
+		} finally {
+			idle.addFirst(machine);
+		}
+	}
+
+	private <T> void forEach(Stream<T> items, Consumer<T> action) {
+		if(pool != null) {
+			// a parallel stream started from a task runs in that task's pool
+			pool.submit(() -> items.parallel().forEach(action)).join();
+			return;
+		}
+		Semaphore slots = new Semaphore(IN_FLIGHT);
+		AtomicReference<RuntimeException> failure = new AtomicReference<>();
+		items.forEach(item -> {
+			slots.acquireUninterruptibly();
+			try {
+				executor.execute(() -> {
+					try {
+						action.accept(item);
+					} catch(RuntimeException e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						slots.release();
+					}
+				});
+			} catch(RuntimeException e) {
+				slots.release();
+				throw e;
+			}
+		});
+		slots.acquireUninterruptibly(IN_FLIGHT);
+		if(failure.get() != null) {
+			throw failure.get();
+		}
+	}
+}
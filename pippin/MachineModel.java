@@ -1,311 +1,344 @@
 package pippin;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.Observable;
 
 public class MachineModel extends Observable {
+	public enum Engine { INTERPRETER, COMPILER, THREADED }
 
-	private class CPU {
+	private static class CPU {
 		private int accum;
 		private int pc;
+		// FOR loops in progress, innermost last: the first body
+		// instruction, the addressing of the FOR word and the two
+		// iteration counters of each
+		// the arrays start empty and grow on the first FOR
+		private int forDepth;
+		private int[] forBody = NO_FORS;
+		private int[] forMode = NO_FORS;
+		private int[] forArg = NO_FORS;
+		private int[] forOuter = NO_FORS;
+		private int[] forInner = NO_FORS;
 	}
+	private static final int[] NO_FORS = new int[0];
+	// the program of a machine until it is given one
+	private static final Code EMPTY = new Code().toImage();
 
-	public final Instruction[] INSTRUCTIONS = new Instruction[0x10];
+	// An instruction for one opcode and addressing mode, performed on the
+	// machine it is given. The table of them is shared by all machines,
+	// which only hold their registers, memory and program.
+	private interface Handler {
+		void execute(MachineModel m, int arg, int flags);
+	}
+	
+	private static final Handler[] HANDLERS = new Handler[0x40];
+	// shared by every opcode and addressing mode combination that is not legal
+	private static final Handler ILLEGAL_FLAGS = (m, arg, flags) -> {
+		throw illegalFlags(flags & 0x6);
+	};
+	// one Instruction per opcode taking the flags, built on the first
+	// call to get
+	private Instruction[] instructions;
 	private CPU cpu = new CPU();
-	private Memory memory = new Memory();
+	private Memory memory;
 	private boolean withGUI = false;
-	private Code code = new Code();
+	private Code code = EMPTY;
 	private boolean running = false;
+	private Engine engine = Engine.INTERPRETER;
+	// compiled or threaded form of code, built on the first run with
+	// the COMPILER or THREADED engine
+	private CompiledCode compiled;
+	private boolean compileFailed = false;
+	// how the machine last stopped, null while it has not
+	private RunResult status;
+	// the kind of the fault that ended the body of the last FOR run whole
+	private RunResult.FaultKind forFaultKind;
+	// undo log of the steps taken through step(), null unless journaling
+	private Journal journal;
 
+	// HALT only stops the machine, with or without the GUI, so that any
+	// number of programs can be run in one JVM
 	void halt() {
-		if(!withGUI) {
-			System.exit(0);
-		}
-		else {
-			running = false;
-		}
+		running = false;
 	}
 
 	public MachineModel(boolean withGUI) {
+		this(withGUI, new Memory());
+	}
+	
+	// a machine with dataSize words of data memory
+	public MachineModel(boolean withGUI, int dataSize) {
+		this(withGUI, new Memory(dataSize));
+	}
+	
+	// a machine running on memory itself rather than a copy, such as a
+	// memory mapped from a file. A machine on a mapped memory cannot be
+	// forked.
+	public MachineModel(boolean withGUI, Memory memory) {
 		this.withGUI = withGUI;
+		this.memory = memory;
+	}
+	
+	static {
+		for(int i = 0; i < HANDLERS.length; i++) {
+			HANDLERS[i] = ILLEGAL_FLAGS;
+		}
+		// there is no opcode 0xE
+		for(int flags = 0; flags < 8; flags += 2) {
+			HANDLERS[slot(0xE, flags)] = null;
+		}
 
-		//INSTRUCTION_MAP entry for "NOP"
-		INSTRUCTIONS[0x0] = (arg, flags) -> {
-			flags = flags & 0x6; // remove parity bit that will have been verified
-			if(flags != 0) {
-				String fString = "(" + (flags%8 > 3?"1":"0") + 
-						(flags%4 > 1?"1":"0") + ")";
-				throw new IllegalInstructionException(
-						"Illegal flags for this instruction: " + fString);
-			}
-			cpu.pc++;			
-		};
+		//HANDLERS entry for "NOP"
+		HANDLERS[slot(0x0, 0)] = (m, arg, flags) -> m.cpu.pc++;
 
-		//INSTRUCTION_MAP entry for "LOD"
-		INSTRUCTIONS[0x1] = (arg, flags) -> {
-			flags = flags & 0x6; // remove parity bit that will have been verified
-			if(flags == 0) { // direct addressing
-				cpu.accum = memory.getData(arg);
-			} else if(flags == 2) { // immediate addressing
-				cpu.accum = arg;
-			} else if(flags == 4) { // indirect addressing
-				cpu.accum = memory.getData(memory.getData(arg));
-			} else { 
-				String fString = "(" + (flags%8 > 3?"1":"0") 
-						+ (flags%4 > 1?"1":"0") + ")";
-				throw new IllegalInstructionException(
-						"Illegal flags for this instruction: " + fString);
-			}
-			cpu.pc++;
+		//HANDLERS entries for "LOD"
+		HANDLERS[slot(0x1, 0)] = (m, arg, flags) -> { // direct addressing
+			m.cpu.accum = m.memory.getData(arg);
+			m.cpu.pc++;
+		};
+		HANDLERS[slot(0x1, 2)] = (m, arg, flags) -> { // immediate addressing
+			m.cpu.accum = arg;
+			m.cpu.pc++;
+		};
+		HANDLERS[slot(0x1, 4)] = (m, arg, flags) -> { // indirect addressing
+			m.cpu.accum = m.memory.getData(m.memory.getData(arg));
+			m.cpu.pc++;
 		};
 
-		//INSTRUCTION entry for "STO"
-		INSTRUCTIONS[0x2] = (arg, flags) -> {
-			flags = flags & 0x6;
-			if(flags == 0) { // direct addressing
-				memory.setData(arg, cpu.accum);
-			} else if(flags == 4) { // indirect addressing
-				memory.setData(memory.getData(arg), cpu.accum);
-			} else { 
-				String fString = "(" + (flags%8 > 3?"1":"0") 
-						+ (flags%4 > 1?"1":"0") + ")";
-				throw new IllegalInstructionException(
-						"Illegal flags for this instruction: " + fString);
-			}
-			cpu.pc++;
+		//HANDLERS entries for "STO"
+		HANDLERS[slot(0x2, 0)] = (m, arg, flags) -> { // direct addressing
+			m.memory.setData(arg, m.cpu.accum);
+			m.cpu.pc++;
+		};
+		HANDLERS[slot(0x2, 4)] = (m, arg, flags) -> { // indirect addressing
+			m.memory.setData(m.memory.getData(arg), m.cpu.accum);
+			m.cpu.pc++;
 		};
 
-		//INSTRUCTION_MAP entry for "JUMP"
-		INSTRUCTIONS[0x3] = (arg, flags) -> {
-			flags = flags & 0x6; // remove parity bit that will have been verified
-			if(flags == 0) { // direct addressing
-				cpu.pc += arg;
-			} else if(flags == 2) { // immediate addressing
-				cpu.pc = arg;
-			} else if(flags == 4) { // indirect addressing
-				cpu.pc += memory.getData(arg);
-			} else { 
-				cpu.pc = memory.getData(arg);
-			}
+		//HANDLERS entries for "JUMP"
+		HANDLERS[slot(0x3, 0)] = (m, arg, flags) -> m.cpu.pc += arg; // direct addressing
+		HANDLERS[slot(0x3, 2)] = (m, arg, flags) -> m.cpu.pc = arg; // immediate addressing
+		HANDLERS[slot(0x3, 4)] = (m, arg, flags) -> m.cpu.pc += m.memory.getData(arg); // indirect addressing
+		HANDLERS[slot(0x3, 6)] = (m, arg, flags) -> m.cpu.pc = m.memory.getData(arg);
+
+		//HANDLERS entries for "JMPZ"
+		HANDLERS[slot(0x4, 0)] = (m, arg, flags) -> { // direct addressing
+			if(m.cpu.accum == 0) m.cpu.pc += arg;
+			else m.cpu.pc++;
+		};
+		HANDLERS[slot(0x4, 2)] = (m, arg, flags) -> { // immediate addressing
+			if(m.cpu.accum == 0) m.cpu.pc = arg;
+			else m.cpu.pc++;
+		};
+		HANDLERS[slot(0x4, 4)] = (m, arg, flags) -> { // indirect addressing
+			if(m.cpu.accum == 0) m.cpu.pc += m.memory.getData(arg);
+			else m.cpu.pc++;
+		};
+		HANDLERS[slot(0x4, 6)] = (m, arg, flags) -> {
+			if(m.cpu.accum == 0) m.cpu.pc = m.memory.getData(arg);
+			else m.cpu.pc++;
 		};
 
-		//INSTRUCTION_MAP entry for "JMPZ"
-		INSTRUCTIONS[0x4] = (arg, flags) -> {
-			if(cpu.accum == 0) {
-				flags = flags & 0x6; // remove parity bit that will have been verified
-				if(flags == 0) { // direct addressing
-					cpu.pc += arg;
-				} else if(flags == 2) { // immediate addressing
-					cpu.pc = arg;
-				} else if(flags == 4) { // indirect addressing
-					cpu.pc += memory.getData(arg);
-				} else { 
-					cpu.pc = memory.getData(arg);
-				}
-			} else cpu.pc++;
+		//HANDLERS entries for ADD (add)
+		HANDLERS[slot(0x5, 0)] = (m, arg, flags) -> { // direct addressing
+			m.cpu.accum += m.memory.getData(arg);
+			m.cpu.pc++;
+		};
+		HANDLERS[slot(0x5, 2)] = (m, arg, flags) -> { // immediate addressing
+			m.cpu.accum += arg;
+			m.cpu.pc++;
+		};
+		HANDLERS[slot(0x5, 4)] = (m, arg, flags) -> { // indirect addressing
+			m.cpu.accum += m.memory.getData(m.memory.getData(arg));
+			m.cpu.pc++;
 		};
 
-		//INSTRUCTION entry for ADD (add)
-		INSTRUCTIONS[0x5] = (arg, flags) -> {
-			flags = flags & 0x6; // remove parity bit that will have been verified
-			if(flags == 0) { // direct addressing
-				cpu.accum += memory.getData(arg);
-			} else if(flags == 2) { // immediate addressing
-				cpu.accum += arg;
-			} else if(flags == 4) { // indirect addressing
-				cpu.accum += memory.getData(memory.getData(arg));				
-			} else { // here the illegal case is "11"
-				String fString = "(" + (flags%8 > 3?"1":"0") 
-						+ (flags%4 > 1?"1":"0") + ")";
-				throw new IllegalInstructionException(
-						"Illegal flags for this instruction: " + fString);
-			}
-			cpu.pc++;			
+		//HANDLERS entries for SUB (subtract)
+		HANDLERS[slot(0x6, 0)] = (m, arg, flags) -> { // direct addressing
+			m.cpu.accum -= m.memory.getData(arg);
+			m.cpu.pc++;
+		};
+		HANDLERS[slot(0x6, 2)] = (m, arg, flags) -> { // immediate addressing
+			m.cpu.accum -= arg;
+			m.cpu.pc++;
+		};
+		HANDLERS[slot(0x6, 4)] = (m, arg, flags) -> { // indirect addressing
+			m.cpu.accum -= m.memory.getData(m.memory.getData(arg));
+			m.cpu.pc++;
 		};
 
-		//INSTRUCTION entry for SUB (subtract)
-		INSTRUCTIONS[0x6] = (arg, flags) -> {
-			flags = flags & 0x6; // remove parity bit that will have been verified
-			if(flags == 0) { // direct addressing
-				cpu.accum -= memory.getData(arg);
-			} else if(flags == 2) { // immediate addressing
-				cpu.accum -= arg;
-			} else if(flags == 4) { // indirect addressing
-				cpu.accum -= memory.getData(memory.getData(arg));				
-			} else { // here the illegal case is "11"
-				String fString = "(" + (flags%8 > 3?"1":"0") 
-						+ (flags%4 > 1?"1":"0") + ")";
-				throw new IllegalInstructionException(
-						"Illegal flags for this instruction: " + fString);
-			}
-			cpu.pc++;			
+		//HANDLERS entries for MUL (multiply)
+		HANDLERS[slot(0x7, 0)] = (m, arg, flags) -> { // direct addressing
+			m.cpu.accum *= m.memory.getData(arg);
+			m.cpu.pc++;
+		};
+		HANDLERS[slot(0x7, 2)] = (m, arg, flags) -> { // immediate addressing
+			m.cpu.accum *= arg;
+			m.cpu.pc++;
+		};
+		HANDLERS[slot(0x7, 4)] = (m, arg, flags) -> { // indirect addressing
+			m.cpu.accum *= m.memory.getData(m.memory.getData(arg));
+			m.cpu.pc++;
 		};
 
-		//INSTRUCTION entry for MUL (multiply)
-		INSTRUCTIONS[0x7] = (arg, flags) -> {
-			flags = flags & 0x6; // remove parity bit that will have been verified
-			if(flags == 0) { // direct addressing
-				cpu.accum *= memory.getData(arg);
-			} else if(flags == 2) { // immediate addressing
-				cpu.accum *= arg;
-			} else if(flags == 4) { // indirect addressing
-				cpu.accum *= memory.getData(memory.getData(arg));				
-			} else { // here the illegal case is "11"
-				String fString = "(" + (flags%8 > 3?"1":"0") 
-						+ (flags%4 > 1?"1":"0") + ")";
-				throw new IllegalInstructionException(
-						"Illegal flags for this instruction: " + fString);
-			}
-			cpu.pc++;			
+		//HANDLERS entries for DIV (divide)
+		HANDLERS[slot(0x8, 0)] = (m, arg, flags) -> { // direct addressing
+			m.divide(m.memory.getData(arg));
+		};
+		HANDLERS[slot(0x8, 2)] = (m, arg, flags) -> { // immediate addressing
+			m.divide(arg);
+		};
+		HANDLERS[slot(0x8, 4)] = (m, arg, flags) -> { // indirect addressing
+			m.divide(m.memory.getData(m.memory.getData(arg)));
 		};
 
-		//INSTRUCTION entry for DIV (divide)
-		INSTRUCTIONS[0x8] = (arg, flags) -> {
-			flags = flags & 0x6; // remove parity bit that will have been verified
-			if(flags == 0) { // direct addressing
-				if(memory.getData(arg) != 0) {
-					cpu.accum /= memory.getData(arg);
-				}
-				else throw new DivideByZeroException("Cannot divide by zero");
-			} else if(flags == 2) { // immediate addressing
-				if(arg != 0) {
-					cpu.accum /= arg;
-				}
-				else throw new DivideByZeroException("Cannot divide by zero");
-			} else if(flags == 4) { // indirect addressing
-				if(memory.getData(memory.getData(arg)) != 0) {
-					cpu.accum /= memory.getData(memory.getData(arg));
-				}	
-				else throw new DivideByZeroException("Cannot divide by zero");
-			} else { // here the illegal case is "11"
-				String fString = "(" + (flags%8 > 3?"1":"0") 
-						+ (flags%4 > 1?"1":"0") + ")";
-				throw new IllegalInstructionException(
-						"Illegal flags for this instruction: " + fString);
+		//HANDLERS entries for "AND"
+		HANDLERS[slot(0x9, 0)] = (m, arg, flags) -> { // direct addressing
+			if(m.cpu.accum != 0 && m.memory.getData(arg) != 0) {
+				m.cpu.accum = 1;
 			}
-			cpu.pc++;			
+			else m.cpu.accum = 0;
+			m.cpu.pc++;
 		};
-
-		//INSTRUCTION entry for "AND"
-		INSTRUCTIONS[0x9] = (arg, flags) -> {
-			flags = flags & 0x6; // remove parity bit that will have been verified
-			if(flags == 0) { // direct addressing
-				if(cpu.accum != 0 && memory.getData(arg) != 0) {
-					cpu.accum = 1;
-				}
-				else cpu.accum = 0;
-			} else if(flags == 2) { // immediate addressing
-				if(cpu.accum != 0 && arg != 0) {
-					cpu.accum = 1;
-				}
-				else cpu.accum = 0;
-			} else { // here the illegal case is "11"
-				String fString = "(" + (flags%8 > 3?"1":"0") 
-						+ (flags%4 > 1?"1":"0") + ")";
-				throw new IllegalInstructionException(
-						"Illegal flags for this instruction: " + fString);
+		HANDLERS[slot(0x9, 2)] = (m, arg, flags) -> { // immediate addressing
+			if(m.cpu.accum != 0 && arg != 0) {
+				m.cpu.accum = 1;
 			}
-			cpu.pc++;			
+			else m.cpu.accum = 0;
+			m.cpu.pc++;
 		};
 
-		//INSTRUCTION entry for "NOT"
-		INSTRUCTIONS[0xA] = (arg, flags) -> {
-			flags = flags & 0x6; // remove parity bit that will have been verified
-			if(flags == 0) {
-				if(cpu.accum == 0) {
-					cpu.accum = 1;
-				}
-				else cpu.accum = 0;
-			} else {
-				String fString = "(" + (flags%8 > 3?"1":"0") + 
-						(flags%4 > 1?"1":"0") + ")";
-				throw new IllegalInstructionException(
-						"Illegal flags for this instruction: " + fString);
+		//HANDLERS entry for "NOT"
+		HANDLERS[slot(0xA, 0)] = (m, arg, flags) -> {
+			if(m.cpu.accum == 0) {
+				m.cpu.accum = 1;
 			}
-			cpu.pc++;			
+			else m.cpu.accum = 0;
+			m.cpu.pc++;
 		};
 
-		//INSTRUCTION entry for "CMPL"
-		INSTRUCTIONS[0xB] = (arg, flags) -> {
-			flags = flags & 0x6; // remove parity bit that will have been verified
-			if(flags == 0) {
-				if(memory.getData(arg) < 0) {
-					cpu.accum = 1;
-				}
-				else cpu.accum = 0;
-			} else {
-				String fString = "(" + (flags%8 > 3?"1":"0") + 
-						(flags%4 > 1?"1":"0") + ")";
-				throw new IllegalInstructionException(
-						"Illegal flags for this instruction: " + fString);
+		//HANDLERS entry for "CMPL"
+		HANDLERS[slot(0xB, 0)] = (m, arg, flags) -> {
+			if(m.memory.getData(arg) < 0) {
+				m.cpu.accum = 1;
 			}
-			cpu.pc++;			
+			else m.cpu.accum = 0;
+			m.cpu.pc++;
 		};
 
-		//INSTRUCTION entry for "CMPZ"
-		INSTRUCTIONS[0xC] = (arg, flags) -> {
-			flags = flags & 0x6; // remove parity bit that will have been verified
-			if(flags == 0) {
-				if(memory.getData(arg) == 0) {
-					cpu.accum = 1;
-				}
-				else cpu.accum = 0;
-			} else {
-				String fString = "(" + (flags%8 > 3?"1":"0") + 
-						(flags%4 > 1?"1":"0") + ")";
-				throw new IllegalInstructionException(
-						"Illegal flags for this instruction: " + fString);
+		//HANDLERS entry for "CMPZ"
+		HANDLERS[slot(0xC, 0)] = (m, arg, flags) -> {
+			if(m.memory.getData(arg) == 0) {
+				m.cpu.accum = 1;
 			}
-			cpu.pc++;			
+			else m.cpu.accum = 0;
+			m.cpu.pc++;
 		};
 		
-		//INSTRUCTION entry for "FOR"
-		//Doesn't increment cpu.pc at the end because the second for loop will leave the PC 
-		//at the position after the last instruction in the for loop
-		//Not the best implementation, but it works
-		INSTRUCTIONS[0xD] = (arg, flags) -> {
-			flags = flags & 0x6; // remove parity bit that will have been verified
-			if(flags == 0) { // direct addressing
-				int tempPC = cpu.pc + 1;
-				if(getData(arg)/0x1000 > 0 && getData(arg)%0x1000 > 0) {
-					for(int a = 0; a < getData(arg)%0x1000; a++) {
-						cpu.pc = tempPC;
-						for(int b = 0; b < getData(arg)/0x1000; b++) {
-							//cpu.pc++;
-							step();
-						}
-					}
-				}
-			} else if(flags == 2) { // immediate addressing
-				int tempPC = cpu.pc + 1;
-				if(arg/0x1000 > 0 && arg%0x1000 > 0) {
-					for(int a = 0; a < arg%0x1000; a++) {
-						cpu.pc = tempPC;
-						for(int b = 0; b < arg/0x1000; b++) {
-							//cpu.pc++;
-							step();
-						}
-					}
-				}
-			} else { 
-				String fString = "(" + (flags%8 > 3?"1":"0") 
-						+ (flags%4 > 1?"1":"0") + ")";
-				throw new IllegalInstructionException(
-						"Illegal flags for this instruction: " + fString);
-			}
-			//cpu.pc++
-		};
+		//HANDLERS entries for "FOR"
+		//The body is run by the interpreter, which keeps nested FORs on
+		//its loop stack instead of recursing
+		HANDLERS[slot(0xD, 0)] = (m, arg, flags) -> m.runFor(0, arg); // direct addressing
+		HANDLERS[slot(0xD, 2)] = (m, arg, flags) -> m.runFor(2, arg); // immediate addressing
 
-		//INSTRUCTION entry for "HALT"
-		INSTRUCTIONS[0xF] = (arg, flags) -> {
-			flags = flags & 0x6; // remove parity bit that will have been verified
-			if(flags == 0) {
-				halt();
-			} else {
-				String fString = "(" + (flags%8 > 3?"1":"0") + 
-						(flags%4 > 1?"1":"0") + ")";
-				throw new IllegalInstructionException(
-						"Illegal flags for this instruction: " + fString);
-			}		
-		};
+		//HANDLERS entry for "HALT"
+		HANDLERS[slot(0xF, 0)] = (m, arg, flags) -> m.halt();
+	}
+	
+	// whether the opcode and addressing mode of a decoded instruction have
+	// a handler that does not always fault
+	static boolean isValid(int opcode, int mode) {
+		if(opcode < 0 || opcode >= 0x10) {
+			return false;
+		}
+		Handler handler = HANDLERS[slot(opcode, mode)];
+		return handler != null && handler != ILLEGAL_FLAGS;
+	}
+	
+	// index into HANDLERS of an opcode with addressing flags 0, 2, 4 or 6,
+	// which is the op part without its parity bit
+	static int slot(int opcode, int flags) {
+		return (opcode << 2) | (flags >> 1);
+	}
+	
+	// Runs a whole FOR, as executing its handler always has: when done the
+	// PC is left after the last body instruction executed, or at the FOR
+	// if the FOR word has no iterations
+	private void runFor(int mode, int arg) {
+		int base = cpu.forDepth;
+		if(startFor(cpu.pc, mode, arg)) {
+			cpu.pc = nextForStep(cpu.pc + 1);
+			RunResult result = execute(Long.MAX_VALUE, base);
+			if(result.getFault() != null) {
+				forFaultKind = result.getFaultKind();
+				throw result.getFault();
+			}
+		}
+	}
+	
+	// the FOR word holds the number of body instructions in its upper
+	// digits and the number of iterations in its last three hex digits
+	private int forWord(int mode, int arg) {
+		return mode == 0 ? memory.getData(arg) : arg;
+	}
+	
+	// Pushes a loop frame for the FOR at pc if its word has iterations
+	private boolean startFor(int pc, int mode, int arg) {
+		int word = forWord(mode, arg);
+		if(word/0x1000 <= 0 || word%0x1000 <= 0) {
+			return false;
+		}
+		if(cpu.forDepth == cpu.forBody.length) {
+			int length = Math.max(4, 2*cpu.forDepth);
+			cpu.forBody = Arrays.copyOf(cpu.forBody, length);
+			cpu.forMode = Arrays.copyOf(cpu.forMode, length);
+			cpu.forArg = Arrays.copyOf(cpu.forArg, length);
+			cpu.forOuter = Arrays.copyOf(cpu.forOuter, length);
+			cpu.forInner = Arrays.copyOf(cpu.forInner, length);
+		}
+		int top = cpu.forDepth++;
+		cpu.forBody[top] = pc + 1;
+		cpu.forMode[top] = mode;
+		cpu.forArg[top] = arg;
+		cpu.forOuter[top] = 0;
+		cpu.forInner[top] = 0;
+		return true;
+	}
+	
+	// Decides where the innermost FOR goes next once its current body
+	// step is done, following the loops the handler used to run:
+	//     for(outer = 0; outer < iterations; outer++) {
+	//         pc = body;
+	//         for(inner = 0; inner < length; inner++) step();
+	//     }
+	// with the FOR word read again for every test. A finished FOR is
+	// itself a completed body step of the FOR around it.
+	private int nextForStep(int pc) {
+		while(cpu.forDepth > 0) {
+			int top = cpu.forDepth - 1;
+			if(cpu.forInner[top] < forWord(cpu.forMode[top], cpu.forArg[top])/0x1000) {
+				return pc;
+			}
+			cpu.forOuter[top]++;
+			if(cpu.forOuter[top] < forWord(cpu.forMode[top], cpu.forArg[top])%0x1000) {
+				pc = cpu.forBody[top];
+				cpu.forInner[top] = 0;
+				continue;
+			}
+			cpu.forDepth--;
+			if(cpu.forDepth > 0) {
+				cpu.forInner[cpu.forDepth - 1]++;
+			}
+		}
+		return pc;
+	}
+	
+	private void divide(int divisor) {
+		if(divisor != 0) {
+			cpu.accum /= divisor;
+		}
+		else throw new DivideByZeroException("Cannot divide by zero");
+		cpu.pc++;
 	}
 	
 	public MachineModel() {
@@ -316,11 +349,29 @@ public class MachineModel extends Observable {
 		memory.setData(i, j);		
 	}
 	public Instruction get(int i) {
-		return INSTRUCTIONS[i];
+		if(instructions == null) {
+			// one entry per opcode, taking the flags as before, that
+			// performs the handler for the addressing mode on this machine
+			instructions = new Instruction[0x10];
+			for(int j = 0; j < instructions.length; j++) {
+				if(j != 0xE) {
+					int opcode = j;
+					instructions[j] = (arg, flags) -> 
+						HANDLERS[slot(opcode, flags & 0x6)].execute(this, arg, flags);
+				}
+			}
+		}
+		return instructions[i];
 	}
 	int[] getData() {
 		return memory.getData();
 	}
+	int[] getData(int from, int to) {
+		return memory.getData(from, to);
+	}
+	public int getDataSize() {
+		return memory.getSize();
+	}
 	int getData(int i) {
 		return memory.getData(i);
 	}
@@ -338,34 +389,560 @@ public class MachineModel extends Observable {
 	}
 	public void setRunning(boolean running) {
 		this.running = running;
+		if(running) {
+			status = null;
+		}
 	}
 	public boolean isRunning() {
 		return this.running;
 	}
+	// the result of the last run, or of the step that halted or faulted;
+	// null after setRunning(true) or clear() until the machine stops again
+	public RunResult getStatus() {
+		return status;
+	}
 	public void setCode(int op, int arg) {
+		if(code.isImage()) {
+			// the image may be shared, so the machine changes its own copy
+			code = code.copy();
+		}
 		code.setCode(op, arg);
+		discardCompiled();
+	}
+	// appends count instructions read from program as the op part and
+	// argument of each in turn
+	public void setCode(IntBuffer program, int count) {
+		if(code.isImage()) {
+			code = code.copy();
+		}
+		code.setCode(program, count);
+		discardCompiled();
+	}
+	public Engine getEngine() {
+		return engine;
+	}
+	public void setEngine(Engine engine) {
+		this.engine = engine;
+		discardCompiled();
+	}
+	private void discardCompiled() {
+		compiled = null;
+		compileFailed = false;
 	}
 	void clear() {
 		memory.clear();
-		code.clear();
+		// the Code may have been shared by reset, so it is replaced
+		// rather than cleared
+		code = EMPTY;
+		discardCompiled();
 		cpu.accum = 0;
 		cpu.pc = 0;
+		cpu.forDepth = 0;
+		status = null;
+		if(journal != null) {
+			journal.clear();
+		}
+	}
+	// Makes the machine ready to run code from its first instruction on a
+	// copy of image, reusing its memory and, when code is the Code it ran
+	// last, its compiled form. code is used as it is, not copied, and must
+	// not be changed while any machine runs it.
+	public void reset(Code code, Memory image) {
+		if(code != this.code) {
+			this.code = code;
+			discardCompiled();
+		}
+		copyMemory(image);
+		cpu.accum = 0;
+		cpu.pc = 0;
+		cpu.forDepth = 0;
+		running = true;
+		status = null;
+		if(journal != null) {
+			journal.clear();
+		}
+	}
+	
+	// makes memory a copy of image, replacing it by one of the size of
+	// image if their sizes differ
+	private void copyMemory(Memory image) {
+		if(image.getSize() != memory.getSize()) {
+			memory = new Memory(image.getSize());
+		}
+		memory.copyFrom(image);
+	}
+	
+	// Turns on or off the journal from which stepBack and runBackTo undo
+	// steps taken through step(). Only the most recent steps are kept,
+	// and changes made other than by stepping are not undone.
+	public void setJournaling(boolean journaling) {
+		journal = journaling ? new Journal(Journal.DEFAULT_CAPACITY) : null;
+	}
+	public boolean canStepBack() {
+		return journal != null && journal.canUndo();
+	}
+	
+	// Undoes the last step, which leaves the machine running again; false
+	// if there is no step to undo
+	public boolean stepBack() {
+		if(!canStepBack()) {
+			return false;
+		}
+		undoTo(journal.getSteps() - 1);
+		return true;
+	}
+	
+	// Undoes steps until the one most recently started at pc is undone;
+	// false, with nothing undone, if the journal has no such step
+	public boolean runBackTo(int pc) {
+		long step = journal == null ? -1 : journal.lastStepAt(pc);
+		if(step < 0) {
+			return false;
+		}
+		undoTo(step);
+		return true;
+	}
+	
+	private void undoTo(long step) {
+		journal.undoTo(step, memory);
+		cpu.pc = journal.getPC(step);
+		cpu.accum = journal.getAccum(step);
+		cpu.forDepth = 0;
+		running = true;
+		status = null;
+	}
+	// Returns a machine without a GUI in the same state as this one, FORs
+	// in progress included. The two share memory pages until either writes
+	// to one, and share the program as an image, which this machine also
+	// runs from now on.
+	public MachineModel fork() {
+		if(!code.isImage()) {
+			code = code.toImage();
+			discardCompiled();
+		}
+		MachineModel result = new MachineModel(false, memory.fork());
+		result.code = code;
+		result.engine = engine;
+		result.running = running;
+		result.status = status;
+		result.cpu.accum = cpu.accum;
+		result.cpu.pc = cpu.pc;
+		result.cpu.forDepth = cpu.forDepth;
+		if(cpu.forDepth > 0) {
+			result.cpu.forBody = cpu.forBody.clone();
+			result.cpu.forMode = cpu.forMode.clone();
+			result.cpu.forArg = cpu.forArg.clone();
+			result.cpu.forOuter = cpu.forOuter.clone();
+			result.cpu.forInner = cpu.forInner.clone();
+		}
+		return result;
+	}
+	// running (0 or 1), pc, accum, the number of FORs in progress and
+	// then the body, mode, arg, outer and inner iteration of each, as
+	// saved by Checkpoint
+	int[] getState() {
+		int[] state = new int[4 + 5*cpu.forDepth];
+		state[0] = running ? 1 : 0;
+		state[1] = cpu.pc;
+		state[2] = cpu.accum;
+		state[3] = cpu.forDepth;
+		for(int i = 0; i < cpu.forDepth; i++) {
+			state[4 + 5*i] = cpu.forBody[i];
+			state[5 + 5*i] = cpu.forMode[i];
+			state[6 + 5*i] = cpu.forArg[i];
+			state[7 + 5*i] = cpu.forOuter[i];
+			state[8 + 5*i] = cpu.forInner[i];
+		}
+		return state;
+	}
+	
+	// Restores a state from getState, the code and the data memory, which
+	// the machine takes as they are
+	void setState(int[] state, Code code, Memory data) {
+		this.code = code;
+		discardCompiled();
+		memory = data;
+		running = state[0] != 0;
+		cpu.pc = state[1];
+		cpu.accum = state[2];
+		cpu.forDepth = state[3];
+		int length = Math.max(4, cpu.forDepth);
+		cpu.forBody = new int[length];
+		cpu.forMode = new int[length];
+		cpu.forArg = new int[length];
+		cpu.forOuter = new int[length];
+		cpu.forInner = new int[length];
+		for(int i = 0; i < cpu.forDepth; i++) {
+			cpu.forBody[i] = state[4 + 5*i];
+			cpu.forMode[i] = state[5 + 5*i];
+			cpu.forArg[i] = state[6 + 5*i];
+			cpu.forOuter[i] = state[7 + 5*i];
+			cpu.forInner[i] = state[8 + 5*i];
+		}
+		status = null;
+		if(journal != null) {
+			journal.clear();
+		}
 	}
 	void step() {
+		if(journal != null) {
+			journal.begin(cpu.pc, cpu.accum, memory);
+			memory.setJournal(journal);
+		}
+		RunResult.FaultKind kind = null;
 		try{
-			int opPart = code.getOpPart(cpu.pc);
-			int arg = code.getArg(cpu.pc);
-			Instruction.checkParity(opPart);
-			INSTRUCTIONS[opPart/8].execute(arg, opPart%8);
-		}catch(Exception e) {
+			if(cpu.forDepth > 0) {
+				// inside a FOR body that run stopped in, where the
+				// interpreter keeps the loop frames going
+				RunResult result = execute(1, -1);
+				if(result.getFault() != null) {
+					kind = result.getFaultKind();
+					throw result.getFault();
+				}
+				if(result.getReason() == RunResult.Reason.HALTED) {
+					status = new RunResult(RunResult.Reason.HALTED, 1, cpu.pc, cpu.accum, null);
+				}
+				return;
+			}
+			int pc = cpu.pc;
+			if(pc < 0 || pc >= code.getProgramSize()) {
+				kind = RunResult.FaultKind.CODE_ACCESS;
+				throw new CodeAccessException("Attempt to access code outside its bounds");
+			}
+			Code.Decoded decoded = code.getDecoded();
+			if(pc >= decoded.size) {
+				decoded = code.decodeThrough(pc);
+			}
+			int op = decoded.opcodes[pc];
+			if(op == Code.PARITY_ERROR) {
+				kind = RunResult.FaultKind.PARITY_ERROR;
+				throw new ParityCheckException("The instruction is corrupted.");
+			}
+			if(op < 0 || op == 0xE || op > 0xF) {
+				kind = RunResult.FaultKind.UNKNOWN_OPCODE;
+				throw unknownOpcode(op);
+			}
+			int mode = decoded.modes[pc];
+			forFaultKind = null;
+			HANDLERS[slot(op, mode)].execute(this, decoded.args[pc], mode);
+			// HALT, or a HALT in the body of a FOR
+			if(!running) {
+				status = new RunResult(RunResult.Reason.HALTED, 1, cpu.pc, cpu.accum, null);
+			}
+		}catch(RuntimeException e) {
 			halt();
+			// a fault inside a FOR body leaves the PC at the body instruction
+			status = new RunResult(RunResult.Reason.FAULTED, 1, cpu.pc, cpu.accum, e,
+					kind != null ? kind : forFaultKind != null ? forFaultKind : faultKind(e));
+			cpu.forDepth = 0;
 			throw e;
+		}finally {
+			memory.setJournal(null);
+		}
+	}
+	// Runs at most maxSteps instructions without going through step(),
+	// using the selected engine. HALT and faults stop the machine and are
+	// reported in the result instead of ending the program. A machine
+	// that has stopped returns HALTED after 0 steps, and one that has
+	// never been started, by setRunning(true) or reset, cannot be run.
+	public RunResult run(long maxSteps) {
+		if(!running && status == null) {
+			throw new IllegalStateException("The machine has not been started");
+		}
+		if(journal != null) {
+			// run does not record the steps it takes
+			journal.clear();
+		}
+		if(engine != Engine.INTERPRETER) {
+			status = runCompiled(maxSteps);
+		} else {
+			status = interpret(maxSteps);
+		}
+		return status;
+	}
+	
+	// Runs the compiled or threaded program, handing each instruction it leaves behind
+	// to the interpreter. When fewer steps remain than there are
+	// instructions the interpreter finishes the run, so that the compiled
+	// code never overshoots the budget.
+	private RunResult runCompiled(long maxSteps) {
+		if(code.isImage()) {
+			compiled = code.getCompiledForm(engine);
+		} else if(compiled == null && !compileFailed) {
+			if(engine == Engine.COMPILER) {
+				compiled = BytecodeCompiler.compile(code);
+			} else {
+				compiled = new ThreadedCode(code);
+			}
+			compileFailed = compiled == null;
+		}
+		long steps = 0;
+		if(compiled != null) {
+			int size = code.getProgramSize();
+			int[] regs = new int[3];
+			while(running && cpu.forDepth == 0 && maxSteps - steps > size) {
+				regs[0] = cpu.pc;
+				regs[1] = cpu.accum;
+				int exit = compiled.execute(memory, regs, 
+						(int)Math.min(maxSteps - steps, Integer.MAX_VALUE));
+				cpu.pc = regs[0];
+				cpu.accum = regs[1];
+				steps += regs[2];
+				if(exit == CompiledCode.HALTED) {
+					running = false;
+					return new RunResult(RunResult.Reason.HALTED, steps, cpu.pc, cpu.accum, null);
+				}
+				if(maxSteps - steps <= size) {
+					break; // stopped because the budget is nearly used up
+				}
+				// run the instruction the compiled code left behind, and the
+				// whole body if it started a FOR, since the loop stack is
+				// only kept by the interpreter
+				RunResult result = interpret(1);
+				if(result.getReason() == RunResult.Reason.BUDGET_EXHAUSTED && cpu.forDepth > 0) {
+					steps += result.getSteps();
+					result = execute(maxSteps - steps, 0);
+				}
+				steps += result.getSteps();
+				if(result.getReason() != RunResult.Reason.BUDGET_EXHAUSTED) {
+					return new RunResult(result.getReason(), steps, 
+							result.getPC(), result.getAccum(), result.getFault(),
+							result.getFaultKind());
+				}
+			}
+		}
+		RunResult result = interpret(maxSteps - steps);
+		return new RunResult(result.getReason(), steps + result.getSteps(), 
+				result.getPC(), result.getAccum(), result.getFault(), result.getFaultKind());
+	}
+	
+	// Runs at most maxSteps instructions in the interpreter unless the
+	// machine has already stopped
+	private RunResult interpret(long maxSteps) {
+		if(!running) {
+			return new RunResult(RunResult.Reason.HALTED, 0, cpu.pc, cpu.accum, null);
+		}
+		return execute(maxSteps, -1);
+	}
+	
+	// The switch-dispatch interpreter. pc and accum are kept in locals and
+	// each case must match the HANDLERS entries of the same opcode. FOR
+	// pushes a frame on the loop stack in cpu and every completed step
+	// inside a FOR body advances it. Besides stopping on HALT, a fault or
+	// the budget, it returns once no more than stopDepth FORs are active.
+	private RunResult execute(long maxSteps, int stopDepth) {
+		long steps = 0;
+		while(true) {
+			RunResult result = executeDecoded(maxSteps - steps, stopDepth);
+			steps += result.getSteps();
+			int pc = cpu.pc;
+			if(result.getReason() != RunResult.Reason.BUDGET_EXHAUSTED
+					|| steps == maxSteps || cpu.forDepth <= stopDepth
+					|| pc < code.getDecoded().size || pc >= code.getProgramSize()) {
+				return steps == result.getSteps() ? result : new RunResult(result.getReason(),
+						steps, result.getPC(), result.getAccum(), result.getFault(),
+						result.getFaultKind());
+			}
+			// stopped at an instruction that has not been decoded yet
+			code.decodeThrough(pc);
+		}
+	}
+	
+	// Runs the interpreter until the PC leaves the decoded part of the
+	// program. size is how much of it is decoded, so the one check of the
+	// PC per instruction also finds the segments to decode.
+	private RunResult executeDecoded(long maxSteps, int stopDepth) {
+		// read once, since other machines may publish a larger one
+		Code.Decoded decoded = code.getDecoded();
+		int size = decoded.size;
+		int[] opcodes = decoded.opcodes;
+		int[] modes = decoded.modes;
+		int[] args = decoded.args;
+		int pc = cpu.pc;
+		int accum = cpu.accum;
+		long steps = 0;
+		RunResult.Reason reason = RunResult.Reason.BUDGET_EXHAUSTED;
+		RuntimeException fault = null;
+		RunResult.FaultKind kind = null;
+		try {
+			loop:
+			while(steps < maxSteps && cpu.forDepth > stopDepth) {
+				if(pc < 0 || pc >= size) {
+					if(pc >= 0 && pc < code.getProgramSize()) {
+						break loop; // execute decodes it
+					}
+					kind = RunResult.FaultKind.CODE_ACCESS;
+					throw new CodeAccessException("Attempt to access code outside its bounds");
+				}
+				int mode = modes[pc];
+				int arg = args[pc];
+				switch(opcodes[pc]) {
+				case 0x0: // NOP
+					if(mode != 0) throw illegalFlags(mode);
+					pc++;
+					break;
+				case 0x1: // LOD
+					if(mode == 0) accum = memory.getData(arg);
+					else if(mode == 2) accum = arg;
+					else if(mode == 4) accum = memory.getData(memory.getData(arg));
+					else throw illegalFlags(mode);
+					pc++;
+					break;
+				case 0x2: // STO
+					if(mode == 0) memory.setData(arg, accum);
+					else if(mode == 4) memory.setData(memory.getData(arg), accum);
+					else throw illegalFlags(mode);
+					pc++;
+					break;
+				case 0x3: // JUMP
+					if(mode == 0) pc += arg;
+					else if(mode == 2) pc = arg;
+					else if(mode == 4) pc += memory.getData(arg);
+					else pc = memory.getData(arg);
+					break;
+				case 0x4: // JMPZ
+					if(accum != 0) pc++;
+					else if(mode == 0) pc += arg;
+					else if(mode == 2) pc = arg;
+					else if(mode == 4) pc += memory.getData(arg);
+					else pc = memory.getData(arg);
+					break;
+				case 0x5: // ADD
+					if(mode == 0) accum += memory.getData(arg);
+					else if(mode == 2) accum += arg;
+					else if(mode == 4) accum += memory.getData(memory.getData(arg));
+					else throw illegalFlags(mode);
+					pc++;
+					break;
+				case 0x6: // SUB
+					if(mode == 0) accum -= memory.getData(arg);
+					else if(mode == 2) accum -= arg;
+					else if(mode == 4) accum -= memory.getData(memory.getData(arg));
+					else throw illegalFlags(mode);
+					pc++;
+					break;
+				case 0x7: // MUL
+					if(mode == 0) accum *= memory.getData(arg);
+					else if(mode == 2) accum *= arg;
+					else if(mode == 4) accum *= memory.getData(memory.getData(arg));
+					else throw illegalFlags(mode);
+					pc++;
+					break;
+				case 0x8: { // DIV
+					int divisor;
+					if(mode == 0) divisor = memory.getData(arg);
+					else if(mode == 2) divisor = arg;
+					else if(mode == 4) divisor = memory.getData(memory.getData(arg));
+					else throw illegalFlags(mode);
+					if(divisor == 0) throw new DivideByZeroException("Cannot divide by zero");
+					accum /= divisor;
+					pc++;
+					break;
+				}
+				case 0x9: // AND
+					if(mode == 0) accum = (accum != 0 && memory.getData(arg) != 0) ? 1 : 0;
+					else if(mode == 2) accum = (accum != 0 && arg != 0) ? 1 : 0;
+					else throw illegalFlags(mode);
+					pc++;
+					break;
+				case 0xA: // NOT
+					if(mode != 0) throw illegalFlags(mode);
+					accum = accum == 0 ? 1 : 0;
+					pc++;
+					break;
+				case 0xB: // CMPL
+					if(mode != 0) throw illegalFlags(mode);
+					accum = memory.getData(arg) < 0 ? 1 : 0;
+					pc++;
+					break;
+				case 0xC: // CMPZ
+					if(mode != 0) throw illegalFlags(mode);
+					accum = memory.getData(arg) == 0 ? 1 : 0;
+					pc++;
+					break;
+				case 0xD: // FOR
+					if(mode != 0 && mode != 2) throw illegalFlags(mode);
+					if(startFor(pc, mode, arg)) {
+						pc = nextForStep(pc + 1);
+						steps++;
+						continue;
+					}
+					break; // no iterations: the PC stays at the FOR
+				case 0xF: // HALT
+					if(mode != 0) throw illegalFlags(mode);
+					// a HALT inside a FOR body ends the enclosing FORs too
+					running = false;
+					cpu.forDepth = 0;
+					steps++;
+					reason = RunResult.Reason.HALTED;
+					break loop;
+				default:
+					if(opcodes[pc] == Code.PARITY_ERROR) {
+						kind = RunResult.FaultKind.PARITY_ERROR;
+						throw new ParityCheckException("The instruction is corrupted.");
+					}
+					// every other opcode has a case
+					kind = RunResult.FaultKind.UNKNOWN_OPCODE;
+					throw unknownOpcode(opcodes[pc]);
+				}
+				steps++;
+				if(cpu.forDepth > 0) {
+					cpu.forInner[cpu.forDepth - 1]++;
+					pc = nextForStep(pc);
+				}
+			}
+		} catch(RuntimeException e) {
+			running = false;
+			cpu.forDepth = 0;
+			reason = RunResult.Reason.FAULTED;
+			fault = e;
+			if(kind == null) {
+				kind = faultKind(e);
+			}
+		} finally {
+			cpu.pc = pc;
+			cpu.accum = accum;
 		}
+		return new RunResult(reason, steps, pc, accum, fault, kind);
+	}
+	
+	// the kind of a fault raised by executing an instruction. The PC, the
+	// parity and the opcode are checked before, so what is left are
+	// illegal flags, dividing by zero and, from Memory, data addresses
+	// outside memory. Anything else is not a fault of the program.
+	private static RunResult.FaultKind faultKind(RuntimeException e) {
+		if(e instanceof IllegalInstructionException) return RunResult.FaultKind.ILLEGAL_INSTRUCTION;
+		if(e instanceof DivideByZeroException) return RunResult.FaultKind.DIVIDE_BY_ZERO;
+		if(e instanceof ArrayIndexOutOfBoundsException) return RunResult.FaultKind.DATA_ACCESS;
+		return null;
 	}
+	
+	private static IllegalInstructionException unknownOpcode(int opcode) {
+		return new IllegalInstructionException(
+				"There is no instruction with opcode " + Integer.toHexString(opcode));
+	}
+	
+	private static IllegalInstructionException illegalFlags(int flags) {
+		String fString = "(" + (flags%8 > 3?"1":"0") 
+				+ (flags%4 > 1?"1":"0") + ")";
+		return new IllegalInstructionException(
+				"Illegal flags for this instruction: " + fString);
+	}
+	
 	Code getCode() {
 		return this.code;
 	}
 	int getChangedIndex() {
 		return memory.getChangedIndex();
 	}
+	void drainDirty(DirtySet words) {
+		memory.drainDirty(words);
+	}
+	Memory getMemory() {
+		return memory;
+	}
+	// a copy of the data memory sharing its pages, see Memory.fork
+	Memory forkMemory() {
+		return memory.fork();
+	}
 }
@@ -1,8 +1,9 @@
 package pippin;
 
-import java.util.Observable;
-import java.util.Observer;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+
+import pippin.MachineEvents.Kind;
 
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
@@ -20,8 +21,12 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.PrintWriter;
 
-public class MachineView extends Observable {
+public class MachineView {
 	static final int TICK = 500;
+	// how often the views show the state of a program running after "Go"
+	static final int FRAME = 1000/30;
+	// the instructions the worker runs between checks for a pause
+	private static final long SLICE = 1 << 16;
 	private MachineModel model;
 	private String defaultDir, sourceDir, dataDir, executableDir;
 	private Properties properties;
@@ -34,10 +39,57 @@ public class MachineView extends Observable {
 	private Timer timer;
 	private States state;
 	private File currentProgramFile, currentDataFile;
+	// Reload and loading the same files again only reset the model
+	private final LoadCache loadCache = new LoadCache(8);
 	private boolean running = false;
 	private boolean programLoaded = false;
 	private boolean noDataNeeded = false;
 	private boolean autoStepOn = false;
+	// the words written since the previous delivery of events, drained
+	// from the model once for all the memory panels
+	private final DirtySet dirty = new DirtySet(0);
+	private final MachineEvents events = new MachineEvents(dirty::clear);
+	// After "Go" the program runs on the worker thread, which owns the
+	// model until it stops. It publishes what the views show in
+	// snapshots, and every FRAME the event thread takes the latest one,
+	// which holds the writes of any it replaced, and shows it.
+	private Thread worker;
+	private volatile boolean going = false;
+	private final AtomicReference<Snapshot> published = new AtomicReference<>();
+	// what the views show while the worker runs, set before it starts
+	private Snapshot shown;
+	private Timer frameTimer;
+
+	private static class Snapshot {
+		final int pc;
+		final int accum;
+		final int changedIndex;
+		final Memory data; // a fork of the model's memory
+		final DirtySet dirty;
+		// how the run stopped, in the last snapshot of a run
+		final RunResult result;
+
+		Snapshot(MachineModel model, RunResult result) {
+			pc = model.getPC();
+			accum = model.getAccum();
+			changedIndex = model.getChangedIndex();
+			data = model.forkMemory();
+			dirty = new DirtySet(0);
+			model.drainDirty(dirty);
+			this.result = result;
+		}
+
+		// this snapshot with the writes of an earlier one not yet shown
+		Snapshot(Snapshot later, Snapshot earlier) {
+			pc = later.pc;
+			accum = later.accum;
+			changedIndex = later.changedIndex;
+			data = later.data;
+			dirty = later.dirty.copy();
+			dirty.addAll(earlier.dirty);
+			result = later.result;
+		}
+	}
 
 	public boolean isAutoStepOn() {
 		return autoStepOn;
@@ -55,26 +107,40 @@ public class MachineView extends Observable {
 			state = States.PROGRAM_HALTED;
 		}
 		state.enter();
-		setChanged();
-		notifyObservers();
+		events.post(Kind.STATE);
 	}
 	public States getState() {
 		return this.state;
 	}
 	public int getPC() {
-		return model.getPC();
+		return shown != null ? shown.pc : model.getPC();
 	}
 	public int getAccum() {
-		return model.getAccum();
+		return shown != null ? shown.accum : model.getAccum();
 	}
 	public int getData(int i) {
-		return model.getData(i);
+		return shown != null ? shown.data.getData(i) : model.getData(i);
 	}
 	public Code getCode() {
 		return model.getCode();
 	}
 	public int getChangedIndex() {
-		return model.getChangedIndex();
+		return shown != null ? shown.changedIndex : model.getChangedIndex();
+	}
+	// the first index at or after from written since the previous
+	// delivery of events, or -1
+	public int nextDirty(int from) {
+		return dirty.next(from);
+	}
+	public void subscribe(MachineEvents.Listener listener, Kind first, Kind... rest) {
+		events.subscribe(listener, first, rest);
+	}
+	// posts MEMORY with the words the model wrote since the last post
+	private void postWrites() {
+		if(worker == null) {
+			model.drainDirty(dirty);
+		}
+		events.post(Kind.MEMORY);
 	}
 	private void locateDefaultDirectory() {
 		//CODE TO DISCOVER THE ECLIPSE DEFAULT DIRECTORY:
@@ -130,9 +196,14 @@ public class MachineView extends Observable {
 	void createAndShowGUI() {
 		frame = new JFrame("Pippin Simulator");
 		codeViewPanel = new CodeViewPanel(this);
-		memoryViewPanel1 = new MemoryViewPanel(this, 0, 160);
-		memoryViewPanel2 = new MemoryViewPanel(this, 160, 240);
-		memoryViewPanel3 = new MemoryViewPanel(this, 240, Memory.DATA_SIZE);
+		// the panels split memory as they split DATA_SIZE words, at 160
+		// and 240
+		int size = model.getDataSize();
+		int first = (int)(size*5L/16);
+		int second = (int)(size*15L/32);
+		memoryViewPanel1 = new MemoryViewPanel(this, 0, first);
+		memoryViewPanel2 = new MemoryViewPanel(this, first, second);
+		memoryViewPanel3 = new MemoryViewPanel(this, second, size);
 		cpuViewPanel = new CPUViewPanel(this);
 		controlPanel = new ControlPanel(this);
 		menuBarBuilder = new MenuBarBuilder(this);
@@ -155,10 +226,12 @@ public class MachineView extends Observable {
 		frame.setVisible(true);
 		state = States.NOTHING_LOADED;
 		state.enter();
-		setChanged();
-		notifyObservers();
-		Timer timer = new Timer(TICK, e -> {if(autoStepOn) step();});
+		events.post(Kind.STATE);
+		events.post(Kind.STEPS);
+		postWrites();
+		timer = new Timer(TICK, e -> {if(autoStepOn) step();});
 		timer.start();
+		frameTimer = new Timer(FRAME, e -> showPublished());
 		frame.setLocationRelativeTo(null);
 		
 		frame.setVisible(true);
@@ -166,6 +239,7 @@ public class MachineView extends Observable {
 	}
 	public MachineView(MachineModel model) {
 		this.model = model;
+		model.setJournaling(true);
 		locateDefaultDirectory();
 		loadPropertiesFile();
 		createAndShowGUI();
@@ -176,8 +250,10 @@ public class MachineView extends Observable {
 		noDataNeeded = false;
 		state = States.NOTHING_LOADED;
 		state.enter();
-		setChanged();
-		notifyObservers("Clear");
+		events.post(Kind.CLEARED);
+		events.post(Kind.STATE);
+		events.post(Kind.STEPS);
+		postWrites();
 	}
 	void halt() {
 		setRunning(false);
@@ -193,156 +269,145 @@ public class MachineView extends Observable {
 			System.exit(0);
 		}
 	}
+	// Runs the program on the worker thread until it halts, faults or is
+	// paused with toggleAutoStep
 	public void execute() {
-		while(running) {
-			if(model.isRunning()) {
-				try {
-					model.step();
-				} catch(CodeAccessException e) {
-					halt();
-					JOptionPane.showMessageDialog(
-							frame,
-							"Illegal access to code from line " + getPC() + "\n"
-									+ "Exception message " + e.getMessage(),
-									"Runtime error",
-									JOptionPane.OK_OPTION);
-
-				} catch(ArrayIndexOutOfBoundsException e) {
-					halt();
-					JOptionPane.showMessageDialog(
-							frame,
-							"Illegal access to data from line " + getPC() + "\n"
-									+ "Exception message " + e.getMessage(),
-									"Runtime error",
-									JOptionPane.OK_OPTION);
-
-				} catch(NullPointerException e) {
-					halt();
-					JOptionPane.showMessageDialog(
-							frame,
-							"Null pointer exception from line " + getPC() + "\n"
-									+ "Exception message " + e.getMessage(),
-									"Runtime error",
-									JOptionPane.OK_OPTION);
-
-				} catch(IllegalArgumentException e) {
-					halt();
-					JOptionPane.showMessageDialog(
-							frame,
-							"Program error from line " + getPC() + "\n"
-									+ "Exception message " + e.getMessage(),
-									"Runtime error",
-									JOptionPane.OK_OPTION);
-
-				} catch(IllegalInstructionException e) {
-					halt();
-					JOptionPane.showMessageDialog(
-							frame,
-							"Illegal flags in the instruction from line " + getPC() + "\n"
-									+ "Exception message " + e.getMessage(),
-									"Runtime error",
-									JOptionPane.OK_OPTION);
-
-				} catch(DivideByZeroException e) {
-					halt();
-					JOptionPane.showMessageDialog(
-							frame,
-							"Divide by zero at line " + getPC() + "\n"
-									+ "Exception message " + e.getMessage(),
-									"Runtime error",
-									JOptionPane.OK_OPTION);
-
-				} catch(ParityCheckException e) {
-					halt();
-					JOptionPane.showMessageDialog(
-							frame,
-							"Parity error from line " + getPC() + "\n"
-									+ "Exception message " + e.getMessage(),
-									"Runtime error",
-									JOptionPane.OK_OPTION);
-
+		if(!running || worker != null) {
+			return;
+		}
+		if(!model.isRunning()) {
+			halt();
+			return;
+		}
+		autoStepOn = false;
+		state = States.AUTO_STEPPING;
+		state.enter();
+		events.post(Kind.STATE);
+		// the views show snapshots from now until the worker stops, so
+		// that the event thread never reads the model while it runs
+		shown = new Snapshot(model, null);
+		dirty.addAll(shown.dirty);
+		going = true;
+		worker = new Thread(this::go, "Pippin worker");
+		worker.setDaemon(true);
+		worker.start();
+		frameTimer.start();
+	}
+	// the worker's loop
+	private void go() {
+		RunResult result = null;
+		try {
+			long frame = System.nanoTime();
+			do {
+				result = model.run(SLICE);
+				if(System.nanoTime() - frame >= FRAME*1000000L) {
+					publish(new Snapshot(model, null));
+					frame = System.nanoTime();
 				}
+			} while(going && result.getReason() == RunResult.Reason.BUDGET_EXHAUSTED);
+		} finally {
+			if(result == null) {
+				result = new RunResult(RunResult.Reason.FAULTED, 0, model.getPC(),
+						model.getAccum(), new IllegalStateException("The worker failed"));
 			}
-			else halt();
+			publish(new Snapshot(model, result));
+		}
+	}
+	private void publish(Snapshot snapshot) {
+		published.getAndUpdate(old -> old == null ? snapshot : new Snapshot(snapshot, old));
+	}
+	// on every FRAME while the worker runs
+	private void showPublished() {
+		Snapshot snapshot = published.getAndSet(null);
+		if(snapshot == null) {
+			return;
+		}
+		dirty.addAll(snapshot.dirty);
+		events.post(Kind.STEPS);
+		events.post(Kind.MEMORY);
+		if(snapshot.result == null) {
+			shown = snapshot;
+			return;
+		}
+		// the worker has stopped and the model is the event thread's again
+		frameTimer.stop();
+		try {
+			worker.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		worker = null;
+		shown = null;
+		RunResult result = snapshot.result;
+		if(result.getReason() == RunResult.Reason.BUDGET_EXHAUSTED) {
+			setRunning(true); // paused
+		} else if(result.getReason() == RunResult.Reason.HALTED) {
+			halt();
+		} else {
+			halt();
+			reportFault(result.getFault());
 		}
-		setChanged();
-		notifyObservers();
+	}
+	private void reportFault(RuntimeException e) {
+		String where;
+		if(e instanceof CodeAccessException) {
+			where = "Illegal access to code from line ";
+		} else if(e instanceof ArrayIndexOutOfBoundsException) {
+			where = "Illegal access to data from line ";
+		} else if(e instanceof NullPointerException) {
+			where = "Null pointer exception from line ";
+		} else if(e instanceof IllegalArgumentException) {
+			where = "Program error from line ";
+		} else if(e instanceof IllegalInstructionException) {
+			where = "Illegal flags in the instruction from line ";
+		} else if(e instanceof DivideByZeroException) {
+			where = "Divide by zero at line ";
+		} else if(e instanceof ParityCheckException) {
+			where = "Parity error from line ";
+		} else {
+			where = "Runtime error from line ";
+		}
+		JOptionPane.showMessageDialog(
+				frame,
+				where + getPC() + "\n"
+						+ "Exception message " + e.getMessage(),
+						"Runtime error",
+						JOptionPane.OK_OPTION);
 	}
 	public void step() {
 		if(model.isRunning()) {
 			try {
 				model.step();
-			} catch(CodeAccessException e) {
-				halt();
-				JOptionPane.showMessageDialog(
-						frame,
-						"Illegal access to code from line " + getPC() + "\n"
-								+ "Exception message " + e.getMessage(),
-								"Runtime error",
-								JOptionPane.OK_OPTION);
-
-			} catch(ArrayIndexOutOfBoundsException e) {
-				halt();
-				JOptionPane.showMessageDialog(
-						frame,
-						"Illegal access to data from line " + getPC() + "\n"
-								+ "Exception message " + e.getMessage(),
-								"Runtime error",
-								JOptionPane.OK_OPTION);
-
-			} catch(NullPointerException e) {
-				halt();
-				JOptionPane.showMessageDialog(
-						frame,
-						"Null pointer exception from line " + getPC() + "\n"
-								+ "Exception message " + e.getMessage(),
-								"Runtime error",
-								JOptionPane.OK_OPTION);
-
-			} catch(IllegalArgumentException e) {
+			} catch(CodeAccessException | ArrayIndexOutOfBoundsException
+					| NullPointerException | IllegalArgumentException
+					| IllegalInstructionException | DivideByZeroException
+					| ParityCheckException e) {
 				halt();
-				JOptionPane.showMessageDialog(
-						frame,
-						"Program error from line " + getPC() + "\n"
-								+ "Exception message " + e.getMessage(),
-								"Runtime error",
-								JOptionPane.OK_OPTION);
-
-			} catch(IllegalInstructionException e) {
-				halt();
-				JOptionPane.showMessageDialog(
-						frame,
-						"Illegal flags in the instruction from line " + getPC() + "\n"
-								+ "Exception message " + e.getMessage(),
-								"Runtime error",
-								JOptionPane.OK_OPTION);
-
-			} catch(DivideByZeroException e) {
-				halt();
-				JOptionPane.showMessageDialog(
-						frame,
-						"Divide by zero at line " + getPC() + "\n"
-								+ "Exception message " + e.getMessage(),
-								"Runtime error",
-								JOptionPane.OK_OPTION);
-
-			} catch(ParityCheckException e) {
-				halt();
-				JOptionPane.showMessageDialog(
-						frame,
-						"Parity error from line " + getPC() + "\n"
-								+ "Exception message " + e.getMessage(),
-								"Runtime error",
-								JOptionPane.OK_OPTION);
-
+				reportFault(e);
 			}
-			setChanged();
-			notifyObservers();
+			events.post(Kind.STEPS);
+			postWrites();
 		}
 		else halt();
 	}
+	public boolean canStepBack() {
+		return worker == null && model.canStepBack();
+	}
+	public void stepBack() {
+		boolean stepped = model.stepBack();
+		events.post(Kind.STEPS);
+		postWrites();
+		if(stepped) {
+			// a halted program is running again
+			setRunning(true);
+		}
+	}
 	public void toggleAutoStep() {
-		setAutoStepOn(!autoStepOn);
+		if(worker != null) {
+			going = false; // the worker stops after its current slice
+		} else {
+			setAutoStepOn(!autoStepOn);
+		}
 	}
 	public void loadCode() {
         programLoaded = false;
@@ -433,17 +498,15 @@ public class MachineView extends Observable {
 		programLoaded = temp1;
 		noDataNeeded = temp2;
 		
-		String str = "";
-		if(noDataNeeded)
-			str = Loader.load(model, currentProgramFile);
-		else
-			str = Loader.load(model, currentProgramFile, currentDataFile);
+		String str = loadCache.load(model, currentProgramFile,
+				noDataNeeded ? null : currentDataFile);
 		if(str.equals("success")) {
 			model.setRunning(true);
 			setRunning(true);
 			setAutoStepOn(false);
-			setChanged();
-			notifyObservers("Load Code");
+			events.post(Kind.CODE_LOADED);
+			events.post(Kind.STEPS);
+			postWrites();
 		}
 		else {
 			JOptionPane.showMessageDialog(
@@ -543,11 +606,12 @@ public class MachineView extends Observable {
 		}
 	}
 
+	// The size of data memory may be given as the first argument
 	public static void main(String[] args) {
-		
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : Memory.DATA_SIZE;
 		javax.swing.SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
-				new MachineView(new MachineModel(true)); 
+				new MachineView(new MachineModel(true, size)); 
 			}
 		});
 	}
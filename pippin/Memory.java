@@ -1,34 +1,460 @@
 package pippin;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Data memory of DATA_SIZE words, or of any size up to Integer.MAX_VALUE,
+// held in pages so that fork can share them. A page is only written by
+// the Memory that owns it, through writable; the first write to a page
+// shared by a fork copies it. A memory of at most FLAT_MAX words has one
+// table of pages, all of them made up front. A larger one is sparse: it
+// has a table of page tables, and a table or page that has never been
+// written is null and reads as zeros, so only what is written costs
+// space. A memory made by map keeps its words in a file mapped into the
+// address space instead, and cannot be forked.
 public class Memory {
 	public static final int DATA_SIZE = 512;
-	private int[] data = new int[DATA_SIZE];
+	private static final int PAGE_BITS = 6;
+	static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+	private static final int TABLE_BITS = 10;
+	private static final int TABLE_SIZE = 1 << TABLE_BITS; // pages per table
+	private static final int TABLE_MASK = TABLE_SIZE - 1;
+	private static final int TABLE_SHIFT = PAGE_BITS + TABLE_BITS;
+	public static final int FLAT_MAX = 1 << TABLE_SHIFT;
+	private static final int MAP_BITS = 28; // words in each mapped buffer
+	private static final int MAP_MASK = (1 << MAP_BITS) - 1;
+	private final int size;
+	// a flat memory's pages and the ones it owns, null where it shares
+	// the page
+	private int[][] pages;
+	private int[][] writable;
+	// a sparse memory's page tables and, for each table it owns, the
+	// pages of the table it owns
+	private int[][][] tables;
+	private int[][][] writableTables;
+	// set once copyFrom has shared the tables of a sparse memory with
+	// another, on any thread: it no longer owns them, and its next write
+	// gives them up before copying the table it writes to
+	private volatile boolean shared;
+	// a mapped memory's words, MAP_BITS of them to a buffer
+	private MappedByteBuffer[] buffers;
+	private IntBuffer[] mapped;
 	private int changedIndex = -1;
-	
+	// the words written since the last drainDirty
+	private final DirtySet dirty;
+	// records the old value of each word written while it is set
+	private Journal journal;
+
+	public Memory() {
+		this(DATA_SIZE);
+	}
+
+	public Memory(int size) {
+		if(size <= 0) {
+			throw new IllegalArgumentException("Illegal memory size " + size);
+		}
+		this.size = size;
+		dirty = new DirtySet(size);
+		if(size <= FLAT_MAX) {
+			pages = new int[(size + PAGE_SIZE - 1) >> PAGE_BITS][];
+			writable = new int[pages.length][];
+			for(int p = 0; p < pages.length; p++) {
+				pages[p] = new int[PAGE_SIZE];
+				writable[p] = pages[p];
+			}
+		} else {
+			tables = new int[(int)((size + (long)FLAT_MAX - 1) >> TABLE_SHIFT)][][];
+			writableTables = new int[tables.length][][];
+		}
+		markAllDirty();
+	}
+
+	// a memory sharing all pages of other and owning none, with nothing
+	// in its dirty set
+	private Memory(Memory other) {
+		size = other.size;
+		dirty = new DirtySet(size);
+		if(other.pages != null) {
+			pages = other.pages.clone();
+			writable = new int[pages.length][];
+		} else {
+			tables = other.tables.clone();
+			writableTables = new int[tables.length][][];
+		}
+		changedIndex = other.changedIndex;
+	}
+
+	// a memory over the buffers mapped from a file
+	private Memory(int size, MappedByteBuffer[] buffers) {
+		this.size = size;
+		dirty = new DirtySet(size);
+		this.buffers = buffers;
+		mapped = new IntBuffer[buffers.length];
+		for(int b = 0; b < buffers.length; b++) {
+			mapped[b] = buffers[b].asIntBuffer();
+		}
+	}
+
+	// Returns a memory of size words kept in file as big endian ints,
+	// which is mapped so that the operating system reads its pages as they
+	// are used. The file is made, or made longer
+	// with zeros, if it holds fewer words. Words written reach the file
+	// when the operating system writes them back, or at the latest on
+	// flush.
+	public static Memory map(File file, int size) throws IOException {
+		if(size <= 0) {
+			throw new IllegalArgumentException("Illegal memory size " + size);
+		}
+		MappedByteBuffer[] buffers = new MappedByteBuffer[((size - 1) >> MAP_BITS) + 1];
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+			for(int b = 0; b < buffers.length; b++) {
+				long from = (long)b << MAP_BITS;
+				long words = Math.min(size - from, 1L << MAP_BITS);
+				buffers[b] = channel.map(FileChannel.MapMode.READ_WRITE, 4*from, 4*words);
+			}
+		}
+		return new Memory(size, buffers);
+	}
+
+	// a memory of all the words in file, see map(File, int)
+	public static Memory map(File file) throws IOException {
+		long words = file.length()/4;
+		if(words == 0 || words > Integer.MAX_VALUE) {
+			throw new IOException("File " + file.getName() + " cannot be mapped as a memory");
+		}
+		return map(file, (int)words);
+	}
+
+	// writes the words written to a mapped memory back to its file
+	public void flush() {
+		if(buffers != null) {
+			for(MappedByteBuffer buffer : buffers) {
+				buffer.force();
+			}
+		}
+	}
+
+	boolean isMapped() {
+		return mapped != null;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	// a copy of the whole memory
 	int[] getData() {
-		return this.data;
+		return getData(0, size);
+	}
+
+	// a copy of the words from, up to and not including, to
+	int[] getData(int from, int to) {
+		if(from < 0 || to > size || from > to) {
+			throw new ArrayIndexOutOfBoundsException("Range " + from + " to " + to
+					+ " out of bounds for length " + size);
+		}
+		int[] data = new int[to - from];
+		if(mapped != null) {
+			for(int i = from; i < to; ) {
+				int n = Math.min(to - i, (1 << MAP_BITS) - (i & MAP_MASK));
+				mapped[i >>> MAP_BITS].get(i & MAP_MASK, data, i - from, n);
+				i += n;
+			}
+			return data;
+		}
+		int i = from;
+		while(i < to) {
+			int n = Math.min(to - i, PAGE_SIZE - (i & PAGE_MASK));
+			int[] page = page(i);
+			if(page != null) {
+				System.arraycopy(page, i & PAGE_MASK, data, i - from, n);
+			}
+			i += n;
+		}
+		return data;
+	}
+
+	// the page holding index, or null if it has never been written
+	private int[] page(int index) {
+		if(pages != null) {
+			return pages[index >> PAGE_BITS];
+		}
+		int[][] table = tables[index >>> TABLE_SHIFT];
+		return table == null ? null : table[(index >> PAGE_BITS) & TABLE_MASK];
 	}
-	
+
 	public int getData(int index) {
-		return this.data[index];
+		if(index < 0 || index >= size) {
+			throw outOfBounds(index);
+		}
+		if(pages != null) {
+			return pages[index >> PAGE_BITS][index & PAGE_MASK];
+		}
+		if(mapped != null) {
+			return mapped[index >>> MAP_BITS].get(index & MAP_MASK);
+		}
+		int[] page = page(index);
+		return page == null ? 0 : page[index & PAGE_MASK];
 	}
-	
+
 	public void setData(int index, int value) {
-		this.data[index] = value;
+		if(index < 0 || index >= size) {
+			throw outOfBounds(index);
+		}
+		if(journal != null) {
+			journal.write(index, getData(index));
+		}
+		if(pages != null) {
+			int[] page = writable[index >> PAGE_BITS];
+			if(page == null) {
+				page = own(index >> PAGE_BITS, true);
+			}
+			page[index & PAGE_MASK] = value;
+		} else if(mapped != null) {
+			mapped[index >>> MAP_BITS].put(index & MAP_MASK, value);
+		} else {
+			ownSparse(index)[index & PAGE_MASK] = value;
+		}
 		changedIndex = index;
+		dirty.add(index);
+	}
+
+	// the same exception, with the same message, as the array memory
+	// used to raise
+	private ArrayIndexOutOfBoundsException outOfBounds(int index) {
+		return new ArrayIndexOutOfBoundsException(
+				"Index " + index + " out of bounds for length " + size);
+	}
+
+	// makes page p of this memory its own, copying the shared page if
+	// keep is true and otherwise starting from zeros
+	private int[] own(int p, boolean keep) {
+		pages[p] = keep ? pages[p].clone() : new int[PAGE_SIZE];
+		writable[p] = pages[p];
+		return pages[p];
+	}
+
+	// the page of a sparse memory holding index, which is made its own
+	// first, and its table too
+	private int[] ownSparse(int index) {
+		if(shared) {
+			Arrays.fill(writableTables, null);
+			shared = false;
+		}
+		int t = index >>> TABLE_SHIFT;
+		int[][] owned = writableTables[t];
+		if(owned == null) {
+			tables[t] = tables[t] == null ? new int[TABLE_SIZE][] : tables[t].clone();
+			owned = writableTables[t] = new int[TABLE_SIZE][];
+		}
+		int p = (index >> PAGE_BITS) & TABLE_MASK;
+		int[] page = owned[p];
+		if(page == null) {
+			page = tables[t][p] == null ? new int[PAGE_SIZE] : tables[t][p].clone();
+			tables[t][p] = page;
+			owned[p] = page;
+		}
+		return page;
 	}
-	
+
 	public void clear() {
-		for(int i = 0; i < this.data.length; i++) {
-			data[i] = 0;
+		markAllDirty();
+		if(mapped != null) {
+			int[] zeros = new int[PAGE_SIZE << TABLE_BITS];
+			for(int i = 0; i < size; i += zeros.length) {
+				put(i, zeros, Math.min(zeros.length, size - i));
+			}
+		} else if(pages != null) {
+			for(int p = 0; p < pages.length; p++) {
+				if(writable[p] != null) {
+					Arrays.fill(pages[p], 0);
+				} else {
+					own(p, false);
+				}
+			}
+		} else {
+			Arrays.fill(tables, null);
+			Arrays.fill(writableTables, null);
 		}
 		changedIndex = -1;
 	}
-	
+
+	// Returns a memory with the same contents that shares every page with
+	// this one until either of them writes to it, in time independent of
+	// the contents
+	public Memory fork() {
+		if(mapped != null) {
+			throw new UnsupportedOperationException("A mapped memory cannot be forked");
+		}
+		Memory result = new Memory(this);
+		// neither may write to the shared pages any more
+		if(pages != null) {
+			Arrays.fill(writable, null);
+		} else {
+			Arrays.fill(writableTables, null);
+		}
+		return result;
+	}
+
+	// makes this memory a copy of other, which must have the same size,
+	// allocating only pages it shares. A sparse memory shares the pages
+	// of other instead, as a fork does, writing nothing to other but its
+	// shared flag, so that many memories may copy one at once.
+	public void copyFrom(Memory other) {
+		if(other.size != size) {
+			throw new IllegalArgumentException("Cannot copy a memory of size "
+					+ other.size + " to one of size " + size);
+		}
+		if(mapped != null || other.mapped != null) {
+			copyWords(other);
+		} else if(pages != null) {
+			for(int p = 0; p < pages.length; p++) {
+				int[] page = writable[p] != null ? writable[p] : own(p, false);
+				System.arraycopy(other.pages[p], 0, page, 0, PAGE_SIZE);
+			}
+		} else {
+			// the pages written before may change as well as those after
+			markAllDirty();
+			if(!other.shared) {
+				other.shared = true;
+			}
+			tables = other.tables.clone();
+			Arrays.fill(writableTables, null);
+		}
+		markAllDirty();
+		changedIndex = -1;
+	}
+
+	// copies other a block at a time, when either is mapped
+	private void copyWords(Memory other) {
+		if(mapped == null) {
+			clear();
+		}
+		int block = PAGE_SIZE << TABLE_BITS;
+		for(int from = 0; from < size; from += block) {
+			int[] words = other.getData(from, (int)Math.min(size, (long)from + block));
+			if(mapped != null) {
+				put(from, words, words.length);
+				continue;
+			}
+			for(int i = 0; i < words.length; i++) {
+				// a sparse memory only gets pages for what is not zero
+				if(words[i] != 0) {
+					int index = from + i;
+					int[] page = pages != null ? pages[index >> PAGE_BITS] : ownSparse(index);
+					page[index & PAGE_MASK] = words[i];
+				}
+			}
+		}
+		markAllDirty();
+	}
+
+	// puts the first n of words into a mapped memory from index on
+	private void put(int index, int[] words, int n) {
+		for(int i = 0; i < n; ) {
+			int at = index + i;
+			int count = Math.min(n - i, (1 << MAP_BITS) - (at & MAP_MASK));
+			mapped[at >>> MAP_BITS].put(at & MAP_MASK, words, i, count);
+			i += count;
+		}
+	}
+
+	// makes this memory a copy of data, which holds getSize() words
+	void setData(int[] data) {
+		if(mapped != null) {
+			put(0, data, size);
+		} else if(pages != null) {
+			for(int p = 0; p < pages.length; p++) {
+				int[] page = writable[p] != null ? writable[p] : own(p, false);
+				System.arraycopy(data, p*PAGE_SIZE, page, 0,
+						Math.min(PAGE_SIZE, size - p*PAGE_SIZE));
+			}
+		} else {
+			clear();
+			for(int i = 0; i < size; i++) {
+				if(data[i] != 0) {
+					ownSparse(i)[i & PAGE_MASK] = data[i];
+				}
+			}
+		}
+		markAllDirty();
+		changedIndex = -1;
+	}
+
+	// Writes the first count of words into this memory from index on, a
+	// page at a time. The writes are not journaled.
+	void setData(int index, int[] words, int count) {
+		if(index < 0 || count < 0 || index > size - count) {
+			throw new ArrayIndexOutOfBoundsException("Range " + index + " to "
+					+ ((long)index + count) + " out of bounds for length " + size);
+		}
+		if(mapped != null) {
+			put(index, words, count);
+		} else {
+			for(int i = 0; i < count; ) {
+				int at = index + i;
+				int n = Math.min(count - i, PAGE_SIZE - (at & PAGE_MASK));
+				int[] page;
+				if(pages != null) {
+					page = writable[at >> PAGE_BITS];
+					if(page == null) {
+						page = own(at >> PAGE_BITS, n < PAGE_SIZE);
+					}
+				} else {
+					page = ownSparse(at);
+				}
+				System.arraycopy(words, i, page, at & PAGE_MASK, n);
+				i += n;
+			}
+		}
+		dirty.addRange(index, index + count);
+		changedIndex = -1;
+	}
+
+	// the first page number at or after p that has ever been written, or
+	// -1. Every page of a flat or mapped memory counts as written.
+	int nextPage(int p) {
+		int count = (int)((size + (long)PAGE_SIZE - 1) >> PAGE_BITS);
+		for(; p < count; p++) {
+			if(pages != null || mapped != null) {
+				return p;
+			}
+			if(tables[p >> TABLE_BITS] == null) {
+				p |= TABLE_MASK; // on to the next table
+			} else if(tables[p >> TABLE_BITS][p & TABLE_MASK] != null) {
+				return p;
+			}
+		}
+		return -1;
+	}
+
+	void setJournal(Journal journal) {
+		this.journal = journal;
+	}
+
 	int getChangedIndex() {
 		return this.changedIndex;
 	}
-	
-	
-	
+
+	// marks every word of every page that has been written
+	private void markAllDirty() {
+		for(int p = nextPage(0); p >= 0; p = nextPage(p + 1)) {
+			dirty.addRange(p*PAGE_SIZE, (int)Math.min(size, (long)(p + 1)*PAGE_SIZE));
+		}
+	}
+
+	// Adds the set of words written since the last drain to words and
+	// empties the set. A memory starts with every word in the set, and
+	// clear, copyFrom and setData(int[]) put every word that may have
+	// changed back in it.
+	void drainDirty(DirtySet words) {
+		dirty.moveTo(words);
+	}
 }
@@ -2,10 +2,10 @@ package pippin;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
-import java.awt.GridLayout;
+import java.awt.Component;
 import java.awt.Rectangle;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.Arrays;
+import java.util.Set;
 
 import javax.swing.BorderFactory;
 import javax.swing.JComponent;
@@ -13,96 +13,145 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
-import javax.swing.JTextField;
+import javax.swing.JTable;
 import javax.swing.border.Border;
 import javax.swing.border.TitledBorder;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableCellRenderer;
 
-public class MemoryViewPanel implements Observer {
+// Shows the data memory from lower up to, not including, upper in a
+// table, which only renders the rows in view. The decimal and hex text of
+// each word is made when its row is first rendered and kept until the
+// word is written.
+public class MemoryViewPanel implements MachineEvents.Listener {
+	// the most rows a table shows, which keeps its height in pixels an int
+	static final int MAX_ROWS = 1 << 20;
 	private MachineView machineView;
 	private JScrollPane scroller;
-	private JTextField[] dataDecimal = new JTextField[Memory.DATA_SIZE];
-	private JTextField[] dataHex = new JTextField[Memory.DATA_SIZE];
+	private JTable table;
+	private MemoryTableModel tableModel;
 	int lower = -1;
 	int upper = -1;
 	int previousColor = -1;
+	// true while the table is empty, until the next program is loaded
+	private boolean blank = true;
+
+	private class MemoryTableModel extends AbstractTableModel {
+		private static final long serialVersionUID = 1L;
+		private final String[] decimal = new String[upper - lower];
+		private final String[] hex = new String[upper - lower];
+
+		@Override
+		public int getRowCount() {
+			return upper - lower;
+		}
+		@Override
+		public int getColumnCount() {
+			return 3;
+		}
+		@Override
+		public String getColumnName(int column) {
+			return column == 0 ? "" : column == 1 ? "Decimal" : "Hex";
+		}
+		@Override
+		public Object getValueAt(int row, int column) {
+			if(column == 0) {
+				return (lower + row) + ": ";
+			}
+			if(blank) {
+				return "";
+			}
+			if(decimal[row] == null) {
+				int value = machineView.getData(lower + row);
+				decimal[row] = "" + value;
+				hex[row] = Integer.toHexString(value);
+			}
+			return column == 1 ? decimal[row] : hex[row];
+		}
+
+		void invalidate(int row) {
+			decimal[row] = null;
+			fireTableRowsUpdated(row, row);
+		}
+		void invalidateAll() {
+			Arrays.fill(decimal, null);
+			fireTableDataChanged();
+		}
+	}
 
 	public MemoryViewPanel(MachineView machineView, int lower, int upper) {
 		this.machineView = machineView;
 		this.lower = lower;
-		this.upper = upper;
-		machineView.addObserver(this);
+		this.upper = (int)Math.min(upper, (long)lower + MAX_ROWS);
+		machineView.subscribe(this, MachineEvents.Kind.MEMORY,
+				MachineEvents.Kind.CODE_LOADED, MachineEvents.Kind.CLEARED);
 	}
 
 	public JComponent createMemoryDisplay() {
 		JPanel returnPanel = new JPanel();
 		returnPanel.setLayout(new BorderLayout());
 		Border border = BorderFactory.createTitledBorder(
-				BorderFactory.createLineBorder(Color.BLACK), 
+				BorderFactory.createLineBorder(Color.BLACK),
 				"Data Memory View [" + lower + "-" + upper + "]",
 				TitledBorder.CENTER, TitledBorder.DEFAULT_POSITION);
 		returnPanel.setBorder(border);
-		JPanel panel = new JPanel();
-		panel.setLayout(new BorderLayout());
-		JPanel numPanel = new JPanel();
-		JPanel decimalPanel = new JPanel();
-		JPanel hexPanel = new JPanel();
-		numPanel.setLayout(new GridLayout(0,1));
-		decimalPanel.setLayout(new GridLayout(0,1));
-		hexPanel.setLayout(new GridLayout(0,1));
-		panel.add(numPanel, BorderLayout.LINE_START);
-		panel.add(decimalPanel, BorderLayout.CENTER);
-		panel.add(hexPanel, BorderLayout.LINE_END);
-		for(int i = lower; i < upper; i++) {
-			numPanel.add(new JLabel(i+": ", JLabel.RIGHT));
-			dataDecimal[i] = new JTextField(10);
-			dataHex[i] = new JTextField(10);
-			decimalPanel.add(dataDecimal[i]);
-			hexPanel.add(dataHex[i]);
-		}
-		scroller = new JScrollPane(panel);
+		tableModel = new MemoryTableModel();
+		table = new JTable(tableModel);
+		table.setDefaultRenderer(Object.class, new DefaultTableCellRenderer() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Component getTableCellRendererComponent(JTable table, Object value,
+					boolean isSelected, boolean hasFocus, int row, int column) {
+				super.getTableCellRendererComponent(table, value, false, false, row, column);
+				setHorizontalAlignment(column == 0 ? JLabel.RIGHT : JLabel.LEFT);
+				setBackground(column > 0 && lower + row == previousColor
+						? Color.YELLOW : Color.WHITE);
+				return this;
+			}
+		});
+		table.getColumnModel().getColumn(0).setMaxWidth(50);
+		table.setRowSelectionAllowed(false);
+		scroller = new JScrollPane(table);
 		returnPanel.add(scroller);
 		return returnPanel;
 	}
-	
-	
 
 	@Override
-	public void update(Observable arg0, Object arg1) {
-		for(int i = lower; i < upper; i++) {
-			dataDecimal[i].setText("" + machineView.getData(i));
-			dataHex[i].setText(Integer.toHexString(machineView.getData(i)));
+	public void machineChanged(Set<MachineEvents.Kind> kinds) {
+		if(tableModel == null) {
+			return;
 		}
-		if(arg1 != null && arg1.equals("Clear")) {
-			for(int i = lower; i < upper; i++) {
-				dataDecimal[i].setText("");
-				dataHex[i].setText("");
-			}			
-			if(lower <= previousColor && previousColor < upper) {
-//was for debuggin	System.out.println("\tagain" + previousColor);
-				dataDecimal[previousColor].setBackground(Color.WHITE);
-				dataHex[previousColor].setBackground(Color.WHITE);
-				previousColor = -1;
-			}
-		} else {
-			if(previousColor  >= lower && previousColor < upper) {
-				dataDecimal[previousColor].setBackground(Color.WHITE);
-				dataHex[previousColor].setBackground(Color.WHITE);
+		boolean cleared = kinds.contains(MachineEvents.Kind.CLEARED);
+		if(cleared) {
+			blank = true;
+			previousColor = -1;
+			tableModel.invalidateAll();
+		}
+		// the words written by clearing stay blank until a program is loaded
+		if(kinds.contains(MachineEvents.Kind.CODE_LOADED) || !cleared) {
+			if(blank) {
+				blank = false;
+				tableModel.invalidateAll();
+			} else {
+				// only the words written since the last delivery
+				for(int i = machineView.nextDirty(lower); i >= 0 && i < upper;
+						i = machineView.nextDirty(i + 1)) {
+					tableModel.invalidate(i - lower);
+				}
 			}
+			int old = previousColor;
 			previousColor = machineView.getChangedIndex();
-			if(previousColor  >= lower && previousColor < upper) {
-				dataDecimal[previousColor].setBackground(Color.YELLOW);
-				dataHex[previousColor].setBackground(Color.YELLOW);
-			} 
-		}
-		if(scroller != null && machineView != null) {
-			JScrollBar bar= scroller.getVerticalScrollBar();
-			if (machineView.getChangedIndex() >= lower &&
-					machineView.getChangedIndex() < upper && 
-					dataDecimal[machineView.getChangedIndex()] != null) {
-				Rectangle bounds = dataDecimal[machineView.getChangedIndex()].getBounds();
+			if(old >= lower && old < upper) {
+				tableModel.fireTableRowsUpdated(old - lower, old - lower);
+			}
+			if(previousColor >= lower && previousColor < upper) {
+				tableModel.fireTableRowsUpdated(previousColor - lower, previousColor - lower);
+				JScrollBar bar = scroller.getVerticalScrollBar();
+				Rectangle bounds = table.getCellRect(previousColor - lower, 0, true);
 				bar.setValue(Math.max(0, bounds.y - 15*bounds.height));
 			}
 		}
 	}
 
-}
\ No newline at end of file
+}
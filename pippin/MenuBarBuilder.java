@@ -3,14 +3,13 @@ package pippin;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.Set;
 
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
 import javax.swing.KeyStroke;
 
-public class MenuBarBuilder implements Observer {
+public class MenuBarBuilder implements MachineEvents.Listener {
 	private JMenuItem assemble = new JMenuItem("Assemble Source...");
 	private JMenuItem load = new JMenuItem("Load Program...");
 	private JMenuItem exit = new JMenuItem("Exit");
@@ -20,7 +19,7 @@ public class MenuBarBuilder implements Observer {
 	
 	public MenuBarBuilder(MachineView machineView) {
 		this.machineView = machineView;
-		machineView.addObserver(this);
+		machineView.subscribe(this, MachineEvents.Kind.STATE);
 	}
 	
 	public JMenu createFileMenu() {
@@ -63,9 +62,10 @@ public class MenuBarBuilder implements Observer {
 	}
 
 	@Override
-	public void update(Observable arg0, Object arg1) {
+	public void machineChanged(Set<MachineEvents.Kind> kinds) {
 		assemble.setEnabled(machineView.getState().getAssembleFileActive());
 		load.setEnabled(machineView.getState().getLoadFileActive());
 		go.setEnabled(machineView.getState().getStepActive());
+		data.setEnabled(machineView.getState().getLoadFileActive());
 	}	
 }
\ No newline at end of file
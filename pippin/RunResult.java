@@ -0,0 +1,62 @@
+package pippin;
+
+public class RunResult {
+	public enum Reason { HALTED, FAULTED, BUDGET_EXHAUSTED }
+	// what went wrong in a FAULTED run: DATA_ACCESS is a data address
+	// outside memory and UNKNOWN_OPCODE an opcode, such as 0xE, that has
+	// no instruction
+	public enum FaultKind { 
+		ILLEGAL_INSTRUCTION, PARITY_ERROR, CODE_ACCESS, DATA_ACCESS, 
+		DIVIDE_BY_ZERO, UNKNOWN_OPCODE 
+	}
+
+	private Reason reason;
+	private long steps;
+	private int pc;
+	private int accum;
+	private RuntimeException fault;
+	private FaultKind faultKind;
+
+	public RunResult(Reason reason, long steps, int pc, int accum, RuntimeException fault) {
+		this(reason, steps, pc, accum, fault, null);
+	}
+
+	public RunResult(Reason reason, long steps, int pc, int accum, RuntimeException fault,
+			FaultKind faultKind) {
+		this.reason = reason;
+		this.steps = steps;
+		this.pc = pc;
+		this.accum = accum;
+		this.fault = fault;
+		this.faultKind = faultKind;
+	}
+
+	public Reason getReason() {
+		return reason;
+	}
+	public long getSteps() {
+		return steps;
+	}
+	public int getPC() {
+		return pc;
+	}
+	public int getAccum() {
+		return accum;
+	}
+	// the exception raised by the faulting instruction, null unless FAULTED
+	public RuntimeException getFault() {
+		return fault;
+	}
+
+	// the kind of fault, as the machine found it, null unless FAULTED or
+	// if the fault was not raised by an instruction
+	public FaultKind getFaultKind() {
+		return faultKind;
+	}
+
+	@Override
+	public String toString() {
+		return reason + " after " + steps + " steps at pc " + pc 
+				+ (fault == null ? "" : ": " + getFaultKind() + " " + fault.getMessage());
+	}
+}
@@ -10,6 +10,7 @@ public enum States {
 			states[RUN] = true;
 			states[RUNNING] = true;
 			states[STEP] = false;
+			states[STEP_BACK] = false;
 		}		
 	},
 	NOTHING_LOADED {
@@ -21,6 +22,7 @@ public enum States {
 			states[RUN] = false;
 			states[RUNNING] = false;
 			states[STEP] = false;
+			states[STEP_BACK] = false;
 		}
 	}, 
 	PROGRAM_HALTED {
@@ -32,6 +34,7 @@ public enum States {
 			states[RUN] = false;
 			states[RUNNING] = false;
 			states[STEP] = false;
+			states[STEP_BACK] = true;
 		}		
 	}, 
 	PROGRAM_LOADED_NOT_AUTOSTEPPING {
@@ -43,6 +46,7 @@ public enum States {
 			states[RUN] = true;
 			states[RUNNING] = false;
 			states[STEP] = true;
+			states[STEP_BACK] = true;
 		}		
 	};
 	private static final int ASSEMBLE = 0;
@@ -52,8 +56,9 @@ public enum States {
 	private static final int RUN = 4;
 	private static final int RUNNING = 5;
 	private static final int STEP = 6; 
+	private static final int STEP_BACK = 7;
 	
-	boolean[] states = new boolean[7];
+	boolean[] states = new boolean[8];
 	
 	public abstract void enter();
 	
@@ -78,4 +83,7 @@ public enum States {
 	public boolean getStepActive() {
 		return states[STEP];
 	}
+	public boolean getStepBackActive() {
+		return states[STEP_BACK];
+	}
 }
\ No newline at end of file
@@ -0,0 +1,296 @@
+package pippin;
+
+// Closure-threaded form of a Code object. Every instruction becomes a
+// Node whose handler performs it and returns the node to run next; the
+// successor of each node and the target of each jump with a fixed
+// address are linked once, when the program is threaded. Common
+// sequences are fused into superinstructions:
+//   LOD x / ADD, SUB or MUL y / STO z
+//   CMPZ or CMPL x / ADD or SUB #k / JMPZ target
+// A fused node is entered only at the first instruction of its sequence
+// and only when the whole sequence fits in the step budget, so a jump
+// into the middle of a sequence, or a run that must stop inside it, goes
+// through the single instructions and sees every PC. Anything not
+// threaded is left to the interpreter as with BytecodeCompiler.
+class ThreadedCode implements CompiledCode {
+
+	private interface Handler {
+		Node execute(Frame frame, Node node);
+	}
+
+	private static class Frame {
+		private Memory memory;
+		private int accum;
+	}
+
+	private static class Node {
+		private final int pc;
+		// the number of instructions this node performs
+		private final int length;
+		// CompiledCode.HALTED or INTERPRET if reaching this node ends
+		// execute, otherwise -1
+		private final int exit;
+		private final Handler handler;
+		private int arg;
+		private int arg2;
+		private int arg3;
+		private Node next;
+		private Node target;
+
+		Node(int pc, int length, int exit, Handler handler) {
+			this.pc = pc;
+			this.length = length;
+			this.exit = exit;
+			this.handler = handler;
+		}
+	}
+
+	private final Node[] single; // one node per instruction
+	private final Node[] entries; // the node to enter at each pc
+	private final int size;
+
+	ThreadedCode(Code code) {
+		Code.Decoded decoded = code.decodeAll();
+		int[] opcodes = decoded.opcodes;
+		int[] modes = decoded.modes;
+		int[] args = decoded.args;
+		size = code.getProgramSize();
+		single = new Node[size];
+		entries = new Node[size];
+		for(int i = 0; i < size; i++) {
+			single[i] = single(i, opcodes[i], modes[i], args[i]);
+			entries[i] = single[i];
+		}
+		for(int i = 0; i < size; i++) {
+			Node fused = fused(i, opcodes, modes, args);
+			if(fused != null) {
+				entries[i] = fused;
+			}
+		}
+		for(int i = 0; i < size; i++) {
+			link(single[i], opcodes[i], modes[i], args[i]);
+			if(entries[i] != single[i]) {
+				link(entries[i], opcodes[i + 2], modes[i + 2], args[i + 2]);
+			}
+		}
+	}
+
+	@Override
+	public int execute(Memory memory, int[] regs, int budget) {
+		Frame frame = new Frame();
+		frame.memory = memory;
+		frame.accum = regs[1];
+		Node node = node(regs[0]);
+		int steps = 0;
+		int exit = CompiledCode.INTERPRET;
+		while(true) {
+			if(node.length > budget - steps) {
+				if(node.length == 1) {
+					break;
+				}
+				node = single[node.pc];
+				continue;
+			}
+			if(node.exit == CompiledCode.HALTED) {
+				steps++;
+				exit = CompiledCode.HALTED;
+				break;
+			}
+			if(node.exit == CompiledCode.INTERPRET) {
+				break;
+			}
+			Node next;
+			try {
+				next = node.handler.execute(frame, node);
+			} catch(RuntimeException e) {
+				// superinstructions write nothing before they can fail, so
+				// the sequence can be run again one instruction at a time;
+				// a single instruction is left to the interpreter
+				if(node.length == 1) {
+					break;
+				}
+				node = single[node.pc];
+				continue;
+			}
+			steps += node.length;
+			node = next;
+		}
+		regs[0] = node.pc;
+		regs[1] = frame.accum;
+		regs[2] = steps;
+		return exit;
+	}
+
+	// the node for a computed pc; a pc outside the program is left to the
+	// interpreter, which raises the CodeAccessException
+	private Node node(int pc) {
+		if(pc >= 0 && pc < size) {
+			return entries[pc];
+		}
+		return new Node(pc, 1, CompiledCode.INTERPRET, null);
+	}
+
+	private static final Handler NOP = (f, n) -> n.next;
+	private static final Handler LOD_DIRECT = (f, n) -> {
+		f.accum = f.memory.getData(n.arg);
+		return n.next;
+	};
+	private static final Handler LOD_IMMEDIATE = (f, n) -> {
+		f.accum = n.arg;
+		return n.next;
+	};
+	private static final Handler LOD_INDIRECT = (f, n) -> {
+		f.accum = f.memory.getData(f.memory.getData(n.arg));
+		return n.next;
+	};
+	private static final Handler STO_DIRECT = (f, n) -> {
+		f.memory.setData(n.arg, f.accum);
+		return n.next;
+	};
+	private static final Handler STO_INDIRECT = (f, n) -> {
+		f.memory.setData(f.memory.getData(n.arg), f.accum);
+		return n.next;
+	};
+	private static final Handler JUMP = (f, n) -> n.target;
+	private static final Handler JMPZ = (f, n) -> f.accum == 0 ? n.target : n.next;
+	private static final Handler NOT = (f, n) -> {
+		f.accum = f.accum == 0 ? 1 : 0;
+		return n.next;
+	};
+	private static final Handler CMPL = (f, n) -> {
+		f.accum = f.memory.getData(n.arg) < 0 ? 1 : 0;
+		return n.next;
+	};
+	private static final Handler CMPZ = (f, n) -> {
+		f.accum = f.memory.getData(n.arg) == 0 ? 1 : 0;
+		return n.next;
+	};
+
+	private Node single(int pc, int op, int mode, int arg) {
+		Node node;
+		switch(MachineModel.slot(op >= 0 && op < 0x10 ? op : 0xE, mode)) {
+		case 0x00: node = new Node(pc, 1, -1, NOP); break;
+		case 0x04: node = new Node(pc, 1, -1, LOD_DIRECT); break;
+		case 0x05: node = new Node(pc, 1, -1, LOD_IMMEDIATE); break;
+		case 0x06: node = new Node(pc, 1, -1, LOD_INDIRECT); break;
+		case 0x08: node = new Node(pc, 1, -1, STO_DIRECT); break;
+		case 0x0A: node = new Node(pc, 1, -1, STO_INDIRECT); break;
+		case 0x0C: case 0x0D: node = new Node(pc, 1, -1, JUMP); break;
+		case 0x0E: // JUMP indirect
+			node = new Node(pc, 1, -1, (f, n) -> node(n.pc + f.memory.getData(n.arg)));
+			break;
+		case 0x0F:
+			node = new Node(pc, 1, -1, (f, n) -> node(f.memory.getData(n.arg)));
+			break;
+		case 0x10: case 0x11: node = new Node(pc, 1, -1, JMPZ); break;
+		case 0x12: // JMPZ indirect
+			node = new Node(pc, 1, -1,
+					(f, n) -> f.accum == 0 ? node(n.pc + f.memory.getData(n.arg)) : n.next);
+			break;
+		case 0x13:
+			node = new Node(pc, 1, -1,
+					(f, n) -> f.accum == 0 ? node(f.memory.getData(n.arg)) : n.next);
+			break;
+		case 0x14: case 0x15: case 0x16: // ADD
+			node = new Node(pc, 1, -1, (f, n) -> {
+				f.accum += operand(f, mode, n.arg);
+				return n.next;
+			});
+			break;
+		case 0x18: case 0x19: case 0x1A: // SUB
+			node = new Node(pc, 1, -1, (f, n) -> {
+				f.accum -= operand(f, mode, n.arg);
+				return n.next;
+			});
+			break;
+		case 0x1C: case 0x1D: case 0x1E: // MUL
+			node = new Node(pc, 1, -1, (f, n) -> {
+				f.accum *= operand(f, mode, n.arg);
+				return n.next;
+			});
+			break;
+		case 0x20: case 0x21: case 0x22: // DIV
+			node = new Node(pc, 1, -1, (f, n) -> {
+				int divisor = operand(f, mode, n.arg);
+				if(divisor == 0) throw new DivideByZeroException("Cannot divide by zero");
+				f.accum /= divisor;
+				return n.next;
+			});
+			break;
+		case 0x24: case 0x25: // AND
+			node = new Node(pc, 1, -1, (f, n) -> {
+				f.accum = (f.accum != 0 && operand(f, mode, n.arg) != 0) ? 1 : 0;
+				return n.next;
+			});
+			break;
+		case 0x28: node = new Node(pc, 1, -1, NOT); break;
+		case 0x2C: node = new Node(pc, 1, -1, CMPL); break;
+		case 0x30: node = new Node(pc, 1, -1, CMPZ); break;
+		case 0x3C: node = new Node(pc, 1, CompiledCode.HALTED, null); break;
+		default: // FOR, illegal flags, parity errors and unknown opcodes
+			node = new Node(pc, 1, CompiledCode.INTERPRET, null);
+		}
+		node.arg = arg;
+		return node;
+	}
+
+	private static int operand(Frame f, int mode, int arg) {
+		if(mode == 0) return f.memory.getData(arg);
+		if(mode == 2) return arg;
+		return f.memory.getData(f.memory.getData(arg));
+	}
+
+	// the superinstruction starting at pc, or null
+	private Node fused(int pc, int[] opcodes, int[] modes, int[] args) {
+		if(pc + 2 >= size) {
+			return null;
+		}
+		int op1 = opcodes[pc], op2 = opcodes[pc + 1], op3 = opcodes[pc + 2];
+		int mode1 = modes[pc], mode2 = modes[pc + 1], mode3 = modes[pc + 2];
+		boolean arithmetic = (op2 == 0x5 || op2 == 0x6 || op2 == 0x7)
+				&& (mode2 == 0 || mode2 == 2);
+		Node node = null;
+		if(op1 == 0x1 && mode1 == 0 && arithmetic && op3 == 0x2 && mode3 == 0) {
+			// LOD x / op y / STO z: all reads happen before the store
+			node = new Node(pc, 3, -1, (f, n) -> {
+				int value = f.memory.getData(n.arg);
+				int operand = mode2 == 2 ? n.arg2 : f.memory.getData(n.arg2);
+				if(op2 == 0x5) value += operand;
+				else if(op2 == 0x6) value -= operand;
+				else value *= operand;
+				f.memory.setData(n.arg3, value);
+				f.accum = value;
+				return n.next;
+			});
+		} else if((op1 == 0xB || op1 == 0xC) && mode1 == 0
+				&& (op2 == 0x5 || op2 == 0x6) && mode2 == 2
+				&& op3 == 0x4 && (mode3 == 0 || mode3 == 2)) {
+			// CMPZ or CMPL x / ADD or SUB #k / JMPZ target: the comparison
+			// gives 0 or 1, so the branch is taken when it equals -k for
+			// ADD or k for SUB
+			int k = op2 == 0x5 ? args[pc + 1] : -args[pc + 1];
+			node = new Node(pc, 3, -1, (f, n) -> {
+				int value = f.memory.getData(n.arg);
+				int flag = (op1 == 0xC ? value == 0 : value < 0) ? 1 : 0;
+				f.accum = flag + k;
+				return f.accum == 0 ? n.target : n.next;
+			});
+		}
+		if(node != null) {
+			node.arg = args[pc];
+			node.arg2 = args[pc + 1];
+			node.arg3 = args[pc + 2];
+		}
+		return node;
+	}
+
+	// sets the successor of a node and the target of a jump whose address
+	// is known, given the last instruction the node performs
+	private void link(Node node, int op, int mode, int arg) {
+		int last = node.pc + node.length - 1;
+		node.next = node(last + 1);
+		if((op == 0x3 || op == 0x4) && (mode == 0 || mode == 2)) {
+			node.target = node(mode == 0 ? last + arg : arg);
+		}
+	}
+}